@@ -0,0 +1,300 @@
+package com.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local cache of images, each kept in a file named after the SHA-256 of its content. The server
+ * announces every image with its hash, so an image that is already cached does not have to be
+ * downloaded again.
+ *
+ * The cache is bounded in bytes. When it grows past its limit, the least recently used images are
+ * deleted, except those the chat history still shows, which are pinned. Use is recorded in the files'
+ * modification times as well, so the order survives a restart.
+ *
+ * A download is written to the partial file of its content, named after the hash, so that when it is
+ * interrupted the next download of the same content resumes it, even after a restart; partials nobody
+ * resumed are deleted after {@link #PARTIAL_LIFETIME}.
+ */
+public class BlobCache {
+    private static final String PART_SUFFIX = ".part"; // Suffix of downloads that are not finished.
+    private static final String PROGRESS_SUFFIX = ".chunks"; // Appended to a partial's name to name the record of its chunks.
+    private static final long PARTIAL_LIFETIME = TimeUnit.DAYS.toMillis(1); // How long an interrupted download can be resumed.
+    private static final int HASH_LENGTH = 64; // Length of a SHA-256 in hex, which every cached image is named.
+    private static final int ADD_FRACTION = 16; // Local images larger than this share of the cache are not copied into it.
+
+    private final Path directory; // Where cached images and downloads in progress are kept.
+    private final long maxBytes; // Size the cache is trimmed back to.
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true); // Cached blobs by hex hash, least recently used first, with their sizes.
+    private long totalBytes; // Sum of the sizes in entries.
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet(); // Hashes whose partial a download is writing.
+    private final Map<String, Integer> pins = new HashMap<>(); // Cached images the chat history shows, by hex hash, with how many entries show each; guarded by this.
+
+    /**
+     * Opens a cache, creating its directory if needed and indexing the images already in it. Only
+     * files named after a hash are taken for images; anything else in the directory is left alone.
+     * Downloads left unfinished by an earlier run are kept for resuming, unless they are too old.
+     *
+     * @param directory The directory holding the cache, which should not hold the user's own files.
+     * @param maxBytes  The largest total size of the cached images.
+     * @throws IOException If the directory cannot be created or read.
+     */
+    public BlobCache(Path directory, long maxBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+
+        List<Path> blobs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                if (name.startsWith("download-") && name.endsWith(PART_SUFFIX)) {
+                    Files.deleteIfExists(path); // Cannot be resumed.
+                } else if (isHash(name, "") && Files.isRegularFile(path)) {
+                    blobs.add(path);
+                }
+            }
+        }
+        sweepPartials();
+        blobs.sort(Comparator.comparingLong(path -> path.toFile().lastModified())); // Oldest use first.
+        for (Path path : blobs) {
+            long size = Files.size(path);
+            entries.put(path.getFileName().toString(), size);
+            totalBytes += size;
+        }
+        trim();
+    }
+
+    /**
+     * Deletes the partial downloads nobody resumed within {@link #PARTIAL_LIFETIME}, skipping those a
+     * download holds. Called periodically, since the client may run for much longer than that.
+     *
+     * @throws IOException If the directory cannot be listed.
+     */
+    public void sweepPartials() throws IOException {
+        FileTime expiry = FileTime.fromMillis(System.currentTimeMillis() - PARTIAL_LIFETIME);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                if (!isHash(name, PART_SUFFIX) && !isHash(name, PART_SUFFIX + PROGRESS_SUFFIX)) {
+                    continue;
+                }
+                String hash = name.substring(0, HASH_LENGTH);
+                if (claimed.add(hash)) { // Held while deleting, so no download opens it meanwhile.
+                    try {
+                        if (Files.getLastModifiedTime(path).compareTo(expiry) < 0) {
+                            Files.deleteIfExists(path);
+                        }
+                    } finally {
+                        claimed.remove(hash);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up an image and marks it as recently used.
+     *
+     * @param hash The SHA-256 of the image.
+     * @return The cached file, or null if the image is not cached.
+     */
+    public synchronized File lookup(byte[] hash) {
+        String name = ContentHash.toHex(hash);
+        if (entries.get(name) == null) {
+            return null;
+        }
+        File file = directory.resolve(name).toFile();
+        if (!file.isFile()) {
+            totalBytes -= entries.remove(name); // Deleted behind our back.
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis()); // Remember the use across restarts.
+        return file;
+    }
+
+    /**
+     * Keeps a cached image from being evicted while something, such as an entry of the chat history,
+     * shows it. Pins are counted, so an image shown twice stays until both let go.
+     *
+     * @param file The cached image file.
+     */
+    public synchronized void pin(File file) {
+        pins.merge(file.getName(), 1, Integer::sum);
+    }
+
+    /**
+     * Releases a pin taken with {@link #pin}, and trims the cache if nothing else pins the image.
+     *
+     * @param file The cached image file.
+     */
+    public synchronized void unpin(File file) {
+        if (pins.computeIfPresent(file.getName(), (name, count) -> count > 1 ? count - 1 : null) == null) {
+            trim();
+        }
+    }
+
+    /**
+     * Creates an empty file for a download to be written into before it is committed.
+     *
+     * @return The new temporary file.
+     * @throws IOException If the file cannot be created.
+     */
+    public File newDownload() throws IOException {
+        return Files.createTempFile(directory, "download-", PART_SUFFIX).toFile();
+    }
+
+    /**
+     * Claims the partial file of a download of this content, which keeps what arrived of an
+     * interrupted download until the content is downloaded again. The claim lasts until {@link #release}.
+     *
+     * @param hash The hash the image was announced with.
+     * @return The partial file, which may not exist yet, or null if another download of the same content holds it.
+     */
+    public File claimPartial(byte[] hash) {
+        String name = ContentHash.toHex(hash);
+        if (!claimed.add(name)) {
+            return null;
+        }
+        return directory.resolve(name + PART_SUFFIX).toFile();
+    }
+
+    /**
+     * Releases the partial file claimed for this content.
+     *
+     * @param hash The hash the image was announced with.
+     */
+    public void release(byte[] hash) {
+        claimed.remove(ContentHash.toHex(hash));
+    }
+
+    /**
+     * @return The file recording which chunks of a partial download have arrived.
+     */
+    public File progressFor(File partial) {
+        return new File(partial.getPath() + PROGRESS_SUFFIX);
+    }
+
+    /**
+     * Moves a finished download into the cache, after checking that its content matches its hash.
+     * The download file and the record of its chunks are gone afterwards either way.
+     *
+     * @param download The finished download.
+     * @param hash     The hash the image was announced with.
+     * @return The cached file, or null if the content did not match the hash.
+     * @throws IOException If the download cannot be read or moved.
+     */
+    public File commit(File download, byte[] hash) throws IOException {
+        byte[] actual;
+        try (FileChannel file = FileChannel.open(download.toPath(), StandardOpenOption.READ)) {
+            actual = ContentHash.of(file);
+        }
+        Files.deleteIfExists(progressFor(download).toPath());
+        if (!Arrays.equals(actual, hash)) {
+            Files.deleteIfExists(download.toPath());
+            return null;
+        }
+        return insert(download.toPath(), hash);
+    }
+
+    /**
+     * Copies a local image into the cache, so it is not downloaded again when the server sends it
+     * back. Does nothing if the image is already cached, or if it is so large that copying it costs
+     * more than it saves: the server sends large images back as small previews, and the original is
+     * only downloaded if asked for.
+     *
+     * @param source The image file.
+     * @param hash   The SHA-256 of the image, already computed by the caller.
+     * @throws IOException If the image cannot be copied.
+     */
+    public void add(Path source, byte[] hash) throws IOException {
+        if (lookup(hash) != null || Files.size(source) > maxBytes / ADD_FRACTION) {
+            return;
+        }
+        Path copy = newDownload().toPath();
+        try {
+            Files.copy(source, copy, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(copy);
+            throw e;
+        }
+        insert(copy, hash);
+    }
+
+    /**
+     * @return true if the name is a hex hash followed by the suffix.
+     */
+    private static boolean isHash(String name, String suffix) {
+        if (name.length() != HASH_LENGTH + suffix.length() || !name.endsWith(suffix)) {
+            return false;
+        }
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Renames a verified file to its hash and records it, then trims the cache.
+     */
+    private synchronized File insert(Path file, byte[] hash) throws IOException {
+        String name = ContentHash.toHex(hash);
+        Path target = directory.resolve(name);
+        try {
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING); // Readers never see a partial image.
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        long size = Files.size(target);
+        Long previous = entries.put(name, size);
+        totalBytes += size - (previous == null ? 0 : previous);
+        trim();
+        return target.toFile();
+    }
+
+    /**
+     * Deletes least recently used images until the cache fits its limit, skipping pinned ones. The
+     * most recent image is always kept, even if it is larger than the limit on its own; pinned images
+     * may keep the cache above its limit too.
+     */
+    private synchronized void trim() {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            if (!eldest.hasNext()) {
+                break; // The most recent image.
+            }
+            if (pins.containsKey(entry.getKey())) {
+                continue; // Still shown.
+            }
+            try {
+                Files.deleteIfExists(directory.resolve(entry.getKey()));
+            } catch (IOException e) {
+                LoginController.LOG.warn("Cannot evict cached image " + entry.getKey() + ": " + e.getMessage());
+            }
+            totalBytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.client;
+
+import java.util.function.Consumer;
+
+import javafx.scene.Cursor;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.Tooltip;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.VBox;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextFlow;
+
+/**
+ * Shows one {@link ChatEntry} in the chat history. The list creates only as many cells as fit on
+ * screen and reuses them while scrolling, so the nodes below are built once per cell, not once per
+ * message. Images are taken from the {@link PreviewCache} each time a cell shows one and let go when
+ * the cell moves on, so previews that scrolled out of view can be evicted.
+ */
+public class ChatCell extends ListCell<ChatEntry> {
+    private final PreviewCache previews; // Where decoded previews come from.
+    private final Text userText = new Text(); // Sender of a text message.
+    private final Text messageText = new Text(); // Text of a text message.
+    private final TextFlow textLine = new TextFlow(userText, messageText); // Layout of a text message.
+    private final Label imageUser = new Label(); // Sender of an image.
+    private final ImageView imageView = new ImageView(); // The image itself.
+    private final VBox imageLine = new VBox(imageUser, imageView); // Layout of an image.
+    private final Tooltip originalTip = new Tooltip("Click to open the original"); // Shown over previews.
+
+    /**
+     * Creates a cell.
+     *
+     * @param previews     The cache to take decoded previews from.
+     * @param previewSize  The side of the box images are shown in, in pixels.
+     * @param openOriginal Called with the entry when the user clicks a preview.
+     */
+    public ChatCell(PreviewCache previews, int previewSize, Consumer<ChatEntry> openOriginal) {
+        this.previews = previews;
+        setPrefWidth(0); // Take the list's width, so long messages wrap instead of scrolling sideways.
+        setStyle("-fx-background-color: transparent;");
+        messageText.setFill(Color.WHITE);
+        imageView.setPreserveRatio(true); // Preserve aspect ratio.
+        imageView.setFitWidth(previewSize);
+        imageView.setFitHeight(previewSize);
+        imageView.setOnMouseClicked(event -> {
+            ChatEntry entry = getItem();
+            if (entry != null && entry.getOriginal() != null) {
+                openOriginal.accept(entry);
+            }
+        });
+    }
+
+    @Override
+    protected void updateItem(ChatEntry entry, boolean empty) {
+        super.updateItem(entry, empty);
+        imageView.setImage(null); // Let go of the previous preview, so the cache can evict it.
+        if (empty || entry == null) {
+            setGraphic(null);
+            return;
+        }
+        if (entry.isImage()) {
+            imageUser.setText(entry.getUserName() + ":");
+            imageUser.setTextFill(entry.getUserColor());
+            imageView.setImage(previews.get(entry.getImage().toURI().toString()));
+            boolean preview = entry.getOriginal() != null;
+            imageView.setCursor(preview ? Cursor.HAND : Cursor.DEFAULT);
+            if (preview) {
+                Tooltip.install(imageView, originalTip);
+            } else {
+                Tooltip.uninstall(imageView, originalTip);
+            }
+            setGraphic(imageLine);
+        } else {
+            userText.setText(entry.getUserName() + ": ");
+            userText.setFill(entry.getUserColor());
+            messageText.setText(entry.getMessage());
+            setGraphic(textLine);
+        }
+    }
+}
@@ -1,48 +1,95 @@
 package com.client;
 
 import javafx.application.Platform;
+import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
+import javafx.scene.control.ListView;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.control.TextField;
 import javafx.scene.image.ImageView;
 import javafx.stage.FileChooser;
 import javafx.scene.paint.Color;
-import javafx.scene.text.Text;
-import javafx.scene.text.TextFlow;
-import javafx.scene.control.Label;
+import javafx.scene.Scene;
+import javafx.stage.Stage;
 import javafx.scene.image.Image;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class ChatController {
     private String USER_NAME; // Stores the username of the current user.
     public static final String SAVE_RUTE = "C:\\Users\\Admin\\Downloads\\ClientImages"; // Path to save received images.
+    private static final long CACHE_SIZE = 256L * 1024 * 1024; // Bytes of received images kept for reuse.
+    private static final String CACHE_DIRECTORY = "cache"; // Subdirectory of SAVE_RUTE the cache owns; the user's files stay out of it.
+    private static final int DOWNLOAD_IDLE_TIMEOUT = 5000; // Milliseconds after which a quiet download is forgotten.
+    private static final int PROBE_TIMEOUT = 1000; // Milliseconds to wait for the server to answer an upload probe.
+    private static final int PROBE_ATTEMPTS = 3; // Upload probes sent before giving up on the server.
+    private static final int REPAIR_INTERVAL = 50; // Milliseconds between checks for what the multicast group lost; also the longest wait before a first NACK.
+    private static final int MAX_REPAIR_BACKOFF = 800; // Longest wait between NACKs for the same gap, in milliseconds.
+    private static final int HEARTBEAT_INTERVAL = 3000; // Milliseconds between heartbeats; the server drops clients that miss several.
+    private static final int PARTIAL_SWEEP_INTERVAL = 60; // Minutes between sweeps of partial downloads nobody resumed.
+    private static final RttEstimator SERVER_RTT = new RttEstimator(); // Round-trip estimate for the server, kept across uploads.
+    private static final int PREVIEW_SIZE = 200; // Side of the box images are shown in, in pixels.
+    private static final long PREVIEW_CACHE_SIZE = 64L * 1024 * 1024; // Bytes of decoded preview pixels kept in memory.
+    private static final int HISTORY_LIMIT = 1000; // Chat entries kept; older ones are dropped from the view.
+    private final PreviewCache previews = new PreviewCache(PREVIEW_SIZE, PREVIEW_CACHE_SIZE); // Decoded previews; used on the FX thread only.
+    private BlobCache blobCache; // Received images by content hash, so none is downloaded twice.
+    private final Set<String> pendingOriginals = ConcurrentHashMap.newKeySet(); // Hex hashes of originals asked for and not yet shown.
+    private final Map<Integer, TransferSession> downloads = new HashMap<>(); // Image downloads in progress, keyed by transfer ID.
+    private final Map<Integer, TransferSession> groupDownloads = new HashMap<>(); // Images being received from the multicast group; multicast thread only.
+    private final Set<Integer> unannounced = new HashSet<>(); // Group transfers whose chunks arrived before their announcement; multicast thread only.
+    private final MessageStream messageStream = new MessageStream(); // Messages received from the multicast group; multicast thread only.
     private final Map<String, Color> userColors = new HashMap<>();
     private final Random random = new Random();
+    private final RepairTimer repairTimer = new RepairTimer(REPAIR_INTERVAL, MAX_REPAIR_BACKOFF, random); // Spaces out NACKs with random back-off; multicast thread only.
 
     @FXML
     private TextField messageInput; // TextField for user to input messages.
     @FXML
-    private TextFlow chatHistoryTextFlow; // TextFlow to display chat history.
-    @FXML
-    private ScrollPane scrollPane;
+    private ListView<ChatEntry> chatHistoryView; // Virtualized list displaying the chat history.
 
     /**
      * Initializes the chat controller by starting the message receiving thread.
      */
     public void initialize() {
         try {
+            chatHistoryView.setCellFactory(view -> new ChatCell(previews, PREVIEW_SIZE,
+                    entry -> fetchOriginal(entry.getUserName(), entry.getFileName(), entry.getOriginal())));
+            blobCache = new BlobCache(Paths.get(SAVE_RUTE, CACHE_DIRECTORY), CACHE_SIZE);
             receiveMessage(); // Start the thread to listen for incoming messages.
+            if (!LoginController.MULTICAST_GROUP.isEmpty()) {
+                receiveMulticast(); // The server sends messages and images to the group.
+            }
+            startHeartbeat(); // Keep the server's registration of this client alive.
         } catch (Exception e) {
             System.out.println(e.getMessage());
             e.printStackTrace();
@@ -66,101 +113,306 @@ public class ChatController {
     }
 
     /**
-     * Continuously listens for incoming messages and updates the chat UI accordingly.
+     * Continuously listens for incoming messages and updates the chat UI accordingly. Image chunks
+     * are matched to their download by transfer ID, so text keeps flowing while images arrive.
      */
     private void receiveMessage() {
         new Thread(() -> {
             try {
+                ByteBuffer frame = LoginController.BUFFER_POOL.acquire(); // Buffer for receiving data, reused for every packet.
                 while (true) { // Infinite loop to listen for messages.
-                    byte[] receiveData = new byte[LoginController.BUFFER_SIZE]; // Buffer for receiving data.
-                    DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-                    LoginController.clientSocket.receive(receivePacket); // Receive a packet from the server.
-
-                    String message = new String(receivePacket.getData(), 0, receivePacket.getLength()); // Convert packet data to string.
-                    String[] messageParts = message.split("\\|"); // Split the message into components.
+                    frame.clear();
+                    SocketAddress sender = LoginController.clientChannel.receive(frame); // Receive a packet from the server.
+                    frame.flip();
+                    receiveDatagram(frame, sender, false);
+                }
+            } catch (Exception e) {
+                System.out.println(e.getMessage());
+                e.printStackTrace();
+                Platform.exit();
+            }
+        }).start();
+    }
 
-                    if (messageParts[0].equals("TEXT")) {
-                        String receivedUserName = messageParts[1]; // Extract sender's username.
-                        String messageType = messageParts[2]; // Extract the actual message content.
+    /**
+     * Joins the server's multicast group and listens to it on a daemon thread. Nothing sent to the
+     * group is acknowledged; instead, the thread asks the server for whatever has gone missing,
+     * waking up when the next NACK is due and at least every {@link #REPAIR_INTERVAL} ms.
+     *
+     * @throws IOException if the group cannot be joined.
+     */
+    private void receiveMulticast() throws IOException {
+        InetAddress group = InetAddress.getByName(LoginController.MULTICAST_GROUP);
+        DatagramChannel channel = DatagramChannel.open(group instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true); // Other clients on this host listen on the same port.
+        channel.bind(new InetSocketAddress(LoginController.MULTICAST_PORT));
+        channel.join(group, multicastInterface());
+        channel.configureBlocking(false);
+        Selector selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        Thread thread = new Thread(() -> {
+            ByteBuffer frame = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM); // Only this thread reads the group.
+            try {
+                long wait = REPAIR_INTERVAL;
+                while (true) {
+                    selector.select(wait);
+                    selector.selectedKeys().clear();
+                    SocketAddress sender;
+                    while ((sender = channel.receive(frame.clear())) != null) {
+                        frame.flip();
+                        receiveDatagram(frame, sender, true);
+                    }
+                    wait = requestRepairs();
+                }
+            } catch (Exception e) {
+                System.out.println(e.getMessage());
+                e.printStackTrace();
+            }
+        }, "client-multicast");
+        thread.setDaemon(true);
+        thread.start();
+    }
 
-                        if (!receivedUserName.equals(USER_NAME)) { // Determine message color based on sender.
-                            appendMessage(receivedUserName, messageType);
-                        } else {
-                            appendMessage(USER_NAME, messageType);
-                        }
-                    } else {
-                        byte[] data = receivePacket.getData();
-                        String combinedMessage = new String(data, 0, receivePacket.getLength()); // Convert to string.
-                        String[] parts = combinedMessage.split("\\|"); // Extract components.
+    /**
+     * Picks the network interface to join the multicast group on: the configured one, or else the
+     * first multicast-capable interface that is up, or else loopback.
+     *
+     * @return the interface.
+     * @throws IOException if the interfaces cannot be listed.
+     */
+    private static NetworkInterface multicastInterface() throws IOException {
+        if (!LoginController.MULTICAST_INTERFACE.isEmpty()) {
+            return NetworkInterface.getByName(LoginController.MULTICAST_INTERFACE);
+        }
+        for (NetworkInterface network : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (network.isUp() && network.supportsMulticast() && !network.isLoopback()) {
+                return network;
+            }
+        }
+        return NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+    }
 
-                        String receivedUserName = parts[0]; // Extract sender's username.
-                        String fileName = parts[1]; // Extract filename.
+    /**
+     * Handles every frame of a datagram. The server packs bursts of messages into one datagram.
+     *
+     * @param frame     the datagram.
+     * @param sender    the address the datagram came from.
+     * @param multicast whether the datagram was sent to the multicast group rather than to this client.
+     * @throws IOException if a download cannot be written.
+     */
+    private void receiveDatagram(ByteBuffer frame, SocketAddress sender, boolean multicast) throws IOException {
+        Map<Integer, TransferSession> transfers = multicast ? groupDownloads : downloads; // Each owned by one receiving thread.
+        for (int at = 0; at < frame.limit(); at = FrameCodec.next(frame, at)) {
+            if (!FrameCodec.isValid(frame, at)) {
+                LoginController.LOG.count(LogSink.Counter.MALFORMED);
+                break;
+            }
 
-                        String savedImagePath = SAVE_RUTE + "\\" + fileName; // Build save path.
-                        File f = new File(savedImagePath);
-                        FileOutputStream outToFile = new FileOutputStream(f); // Create file output stream.
-                        saveImage(outToFile, LoginController.clientSocket); // Save the received image.
+            switch (FrameCodec.type(frame, at)) {
+                case FrameCodec.CHUNK:
+                case FrameCodec.PARITY: {
+                    TransferSession download = transfers.get(FrameCodec.transferId(frame, at));
+                    if (download != null) { // Chunk of an image being downloaded.
+                        receiveChunk(download, frame, at, sender, !multicast);
+                    } else if (multicast) {
+                        unannounced.add(FrameCodec.transferId(frame, at)); // Missed the announcement; ask for it again.
+                    }
+                    break;
+                }
+                case FrameCodec.TEXT: {
+                    if (multicast && !messageStream.accept(FrameCodec.sequence(frame, at))) {
+                        break; // Already shown; a repair meant for another client.
+                    }
+                    String receivedUserName = FrameCodec.userName(frame, at); // Extract sender's username.
+                    String messageType = FrameCodec.body(frame, at); // Extract the actual message content.
 
-                        if (!receivedUserName.equals(USER_NAME)) { // Append image to chat UI based on sender.
-                            appendImage(receivedUserName, savedImagePath);
+                    if (!receivedUserName.equals(USER_NAME)) { // Determine message color based on sender.
+                        appendMessage(receivedUserName, messageType);
+                    } else {
+                        appendMessage(USER_NAME, messageType);
+                    }
+                    break;
+                }
+                case FrameCodec.FILE_META: {
+                    int transferId = FrameCodec.transferId(frame, at); // Extract the ID carried by the image's chunks.
+                    TransferSession existing = transfers.get(transferId);
+                    if (existing != null) { // The server missed our answer and announced again.
+                        if (!multicast) {
+                            sendFileStatus(existing, sender);
+                        }
+                        break;
+                    }
+                    String receivedUserName = FrameCodec.userName(frame, at); // Extract sender's username.
+                    String fileName = FrameCodec.body(frame, at); // Extract filename.
+
+                    forgetIdleDownloads(transfers);
+                    long fileSize = FrameCodec.fileSize(frame, at); // Extract the announced size.
+                    TransferSession download = new TransferSession(receivedUserName, fileName, transferId, fileSize, FrameCodec.fileHash(frame, at));
+                    download.setOriginal(FrameCodec.originalHash(frame, at)); // Set if this is only a preview.
+                    transfers.put(transferId, download);
+                    if (multicast) {
+                        unannounced.remove(transferId);
+                        repairTimer.clear(transferId); // Its chunk gaps start over.
+                    }
+                    File cached = blobCache.lookup(download.getHash());
+                    if (cached == null && download.getOriginal() != null) {
+                        cached = blobCache.lookup(download.getOriginal()); // A preview of an image we have, such as our own upload; the chat scales it down.
+                    }
+                    if (cached != null) { // Seen before: show it without downloading it again.
+                        download.skip();
+                        if (!multicast) {
+                            sendFileStatus(download, sender); // The group sends the chunks anyway; they are ignored.
+                        }
+                        LoginController.LOG.info("Image " + fileName + " already cached, download skipped");
+                        showImage(download, cached);
+                    } else {
+                        File partial = blobCache.claimPartial(download.getHash());
+                        if (partial != null) {
+                            download.open(partial, blobCache.progressFor(partial)); // Resume whatever arrived before.
                         } else {
-                            appendImage(USER_NAME, savedImagePath);
+                            download.open(blobCache.newDownload()); // Already being downloaded by another transfer.
+                        }
+                        if (!multicast) {
+                            sendFileStatus(download, sender);
                         }
                     }
+                    break;
                 }
-            } catch (Exception e) {
-                System.out.println(e.getMessage());
-                e.printStackTrace();
-                Platform.exit();
+                case FrameCodec.RELOGIN: // The server forgot us, for example after the computer slept.
+                    LoginController.LOG.warn("Registration with the server expired, logging in again");
+                    relogin(sender);
+                    break;
+                case FrameCodec.USERNAME_RESULT:
+                    if ((FrameCodec.flags(frame, at) & FrameCodec.FLAG_AVAILABLE) != 0) {
+                        LoginController.LOG.info("Logged in again as " + USER_NAME);
+                    } else {
+                        LoginController.LOG.error("Username " + USER_NAME + " was taken while away; restart to choose another");
+                    }
+                    break;
+                default:
+                    LoginController.LOG.count(LogSink.Counter.MALFORMED);
             }
-        }).start();
+        }
+    }
+
+    /**
+     * Checks this client's username with the server again, which registers it anew.
+     *
+     * @param server the address of the server.
+     */
+    private void relogin(SocketAddress server) {
+        ByteBuffer check = LoginController.BUFFER_POOL.acquire();
+        try {
+            FrameCodec.encodeCheckUsername(check, USER_NAME);
+            LoginController.clientChannel.send(check.flip(), server);
+        } catch (IOException e) {
+            LoginController.LOG.warn("Cannot log in again: " + e.getMessage());
+        } finally {
+            LoginController.BUFFER_POOL.release(check);
+        }
+    }
+
+    /**
+     * Asks the server to send again what the multicast group lost: missing messages, the missing
+     * chunks of images that have gone quiet, and the announcements of images whose chunks arrived
+     * without one. Each gap is NACKed on its own randomized back-off, so that the clients missing
+     * the same frames do not ask in step. Runs on the multicast thread.
+     *
+     * @return milliseconds until the next NACK is due.
+     * @throws IOException if a request cannot be sent.
+     */
+    private long requestRepairs() throws IOException {
+        ByteBuffer nack = LoginController.BUFFER_POOL.acquire();
+        try {
+            InetSocketAddress server = new InetSocketAddress(InetAddress.getByName(LoginController.SERVER_IP), LoginController.SERVER_PORT);
+            long now = System.currentTimeMillis();
+            if (messageStream.gapAge() > DOWNLOAD_IDLE_TIMEOUT) {
+                messageStream.skipGaps(); // Older than the server's history by now; stop asking.
+                repairTimer.clear(0);
+            } else if (!messageStream.hasGap()) {
+                repairTimer.clear(0);
+            } else if (repairTimer.due(0, now)) {
+                messageStream.nack(nack.clear());
+                LoginController.clientChannel.send(nack.flip(), server);
+            }
+            for (TransferSession download : groupDownloads.values()) {
+                ChunkReceiver receiver = download.getReceiver();
+                long idle = download.idleTime();
+                if (receiver == null || receiver.isComplete() || idle < REPAIR_INTERVAL || idle >= DOWNLOAD_IDLE_TIMEOUT) {
+                    repairTimer.clear(download.getTransferId()); // Chunks still flowing, or nothing left to ask for.
+                } else if (repairTimer.due(download.getTransferId(), now)) {
+                    receiver.nack(nack.clear());
+                    LoginController.clientChannel.send(nack.flip(), server);
+                }
+            }
+            for (Iterator<Integer> pending = unannounced.iterator(); pending.hasNext(); ) {
+                int transferId = pending.next();
+                if (repairTimer.due(transferId, now)) {
+                    FrameCodec.encodeNack(nack.clear(), transferId, 0, 0); // Sequence 0 asks for the announcement.
+                    LoginController.clientChannel.send(nack.flip(), server);
+                    pending.remove(); // Asked again only if more of its chunks arrive unannounced.
+                }
+            }
+            repairTimer.expire(now, DOWNLOAD_IDLE_TIMEOUT);
+            return repairTimer.untilNext(now);
+        } finally {
+            LoginController.BUFFER_POOL.release(nack);
+        }
     }
 
     /**
-     * Saves an image received via a DatagramSocket. It uses a sequence number to ensure the packets
-     * are written in the correct order and sends acknowledgments for each packet received.
+     * Saves a chunk of an image being downloaded. Chunks arriving out of order are buffered until the
+     * gap before them is filled, and every packet is answered with a selective acknowledgment. A
+     * PARITY frame rebuilds a lost chunk if it is the only one missing from its group.
      *
-     * @param outToFile The FileOutputStream to write the received data.
-     * @param socket    The DatagramSocket used for receiving packets.
+     * @param download       The download the chunk belongs to.
+     * @param frame          The datagram holding the CHUNK or PARITY frame.
+     * @param at             The position of the frame in the datagram.
+     * @param sender         The address the chunk was sent from.
+     * @param acknowledge    Whether to acknowledge the chunk; chunks sent to the multicast group are not.
      */
-    private static void saveImage(FileOutputStream outToFile, DatagramSocket socket) {
+    private void receiveChunk(TransferSession download, ByteBuffer frame, int at, SocketAddress sender, boolean acknowledge) {
         try {
-            boolean flag; // Indicates if the current packet is the last one.
-            int sequenceNumber; // Stores the sequence number of the current packet.
-            int foundLast = 0; // Tracks the last successfully received sequence number.
-
-            while (true) {
-                byte[] message = new byte[1024]; // Buffer for incoming packet data.
-                byte[] fileByteArray = new byte[1021]; // Buffer to extract file data from the packet.
-
-                DatagramPacket receivedPacket = new DatagramPacket(message, message.length); // Receive the next packet.
-                socket.receive(receivedPacket);
-                message = receivedPacket.getData(); // Get data from the received packet.
-
-                InetAddress address = receivedPacket.getAddress(); // Address of the sender.
-                int port = receivedPacket.getPort(); // Port of the sender.
-                // Extract the sequence number from the first two bytes of the packet.
-                sequenceNumber = ((message[0] & 0xff) << 8) + (message[1] & 0xff);
-                flag = (message[2] & 0xff) == 1; // Check if this is the last packet based on the third byte.
-
-                if (sequenceNumber == (foundLast + 1)) { // Verify if the sequence number matches the expected sequence number.
-                    foundLast = sequenceNumber; // Update the last successfully received sequence number.
-                    // Copy the file data (starting from the 4th byte) into the file buffer.
-                    System.arraycopy(message, 3, fileByteArray, 0, 1021);
-                    outToFile.write(fileByteArray); // Write the data to the file.
-
-                    sendAck(foundLast, socket, address, port); // Send an acknowledgment for the successfully received packet.
-                } else {
-                    // Log a message if the packet's sequence number is not as expected.
-                    System.out.println("Expected sequence number: " + (foundLast + 1) + " but received " + sequenceNumber + ". DISCARDING");
-                    sendAck(foundLast, socket, address, port); // Send an acknowledgment for the last successfully received packet.
+            ChunkReceiver receiver = download.getReceiver();
+            if (receiver == null) {
+                return; // Skipped, or the target file could not be opened.
+            }
+            download.touch();
+            boolean isNew;
+            if (FrameCodec.type(frame, at) == FrameCodec.PARITY) {
+                isNew = receiver.acceptParity(frame, at); // New if it rebuilt a lost chunk.
+                if (isNew) {
+                    LoginController.LOG.count(LogSink.Counter.RECOVERED);
                 }
+            } else {
+                isNew = receiver.accept(frame, at);
+                if (!isNew) {
+                    LoginController.LOG.count(LogSink.Counter.DUPLICATES);
+                }
+            }
+            if (acknowledge) {
+                sendAck(receiver, sender);
+            }
 
-                if (flag) { // If this is the last packet, close the file and exit the loop.
-                    System.out.println("Image received");
-                    outToFile.close();
-                    break;
+            if (isNew && receiver.isComplete()) { // The last missing chunk has been written.
+                download.close();
+                File cached;
+                try {
+                    cached = blobCache.commit(download.getFile(), download.getHash());
+                } finally {
+                    if (download.isResumable()) {
+                        blobCache.release(download.getHash());
+                    }
+                }
+                if (cached == null) {
+                    LoginController.LOG.error("Image " + download.getFileName() + " does not match its hash, discarded");
+                    return;
                 }
+                LoginController.LOG.info("Image received");
+                showImage(download, cached);
+            } else if (isNew) {
+                download.checkpoint();
             }
         } catch (IOException e) {
             System.out.println(e.getMessage());
@@ -169,29 +421,111 @@ public class ChatController {
     }
 
     /**
-     * Sends an acknowledgment for a specific sequence number to the sender.
+     * Tells the server whether an announced image needs to be sent and, if so, which of its chunks
+     * are already here from an interrupted download.
+     *
+     * @param download The download the announcement started.
+     * @param address  The address the announcement came from.
+     */
+    private static void sendFileStatus(TransferSession download, SocketAddress address) {
+        ByteBuffer status = LoginController.BUFFER_POOL.acquire();
+        try {
+            ChunkReceiver receiver = download.getReceiver();
+            FrameCodec.encodeFileStatus(status, download.getTransferId(), download.isSkipped(),
+                    receiver != null ? receiver.getFoundLast() : 0, receiver != null ? receiver.sackBitmap() : 0);
+            LoginController.clientChannel.send(status.flip(), address);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            LoginController.BUFFER_POOL.release(status);
+        }
+    }
+
+    /**
+     * Forgets finished downloads once they have been quiet for a while, and abandons unfinished ones
+     * whose sender went away, keeping what was received of them for the next download of the same
+     * image to resume.
+     *
+     * @param transfers The downloads to look through.
+     */
+    private void forgetIdleDownloads(Map<Integer, TransferSession> transfers) {
+        transfers.values().removeIf(download -> {
+            if (download.idleTime() <= DOWNLOAD_IDLE_TIMEOUT) {
+                return false;
+            }
+            if (!download.isComplete() && download.getFile() != null) {
+                download.suspend();
+                if (download.isResumable()) {
+                    blobCache.release(download.getHash());
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Sends a selective acknowledgment describing every chunk received so far.
      *
-     * @param foundLast The last successfully received sequence number.
-     * @param socket    The DatagramSocket used for sending the acknowledgment.
-     * @param address   The address of the sender.
-     * @param port      The port of the sender.
+     * @param receiver The ChunkReceiver tracking the transfer.
+     * @param address  The address of the sender.
      */
-    private static void sendAck(int foundLast, DatagramSocket socket, InetAddress address, int port) {
+    private static void sendAck(ChunkReceiver receiver, SocketAddress address) {
+        ByteBuffer ackPacket = LoginController.BUFFER_POOL.acquire();
         try {
-            byte[] ackPacket = new byte[2]; // Buffer for acknowledgment packet.
-            // Store the sequence number in the acknowledgment packet.
-            ackPacket[0] = (byte) (foundLast >> 8); // High byte of the sequence number.
-            ackPacket[1] = (byte) (foundLast); // Low byte of the sequence number.
-            // Create a DatagramPacket with the acknowledgment data.
-            DatagramPacket acknowledgement = new DatagramPacket(ackPacket, ackPacket.length, address, port);
-            socket.send(acknowledgement); // Send the acknowledgment packet to the sender.
-            System.out.println("Sent ack: Sequence Number = " + foundLast);
+            receiver.ack(ackPacket); // Cumulative sequence number plus SACK bitmap.
+            LoginController.clientChannel.send(ackPacket.flip(), address); // Send the acknowledgment packet to the sender.
+            LoginController.LOG.count(LogSink.Counter.ACKS_SENT);
         } catch (Exception e) {
             System.out.println(e.getMessage());
             e.printStackTrace();
+        } finally {
+            LoginController.BUFFER_POOL.release(ackPacket);
+        }
+    }
+
+
+    /**
+     * Starts sending a heartbeat to the server at a fixed interval, renewing this client's lease
+     * even while the user is not sending anything. The same thread sweeps the cache's stale partial
+     * downloads now and then.
+     */
+    private void startHeartbeat() {
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "client-heartbeat");
+            thread.setDaemon(true); // Never keeps the application alive.
+            return thread;
+        });
+        heartbeat.scheduleAtFixedRate(ChatController::sendHeartbeat, 0, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        heartbeat.scheduleWithFixedDelay(this::sweepPartials, PARTIAL_SWEEP_INTERVAL, PARTIAL_SWEEP_INTERVAL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Deletes the partial downloads that were never resumed and are too old to be.
+     */
+    private void sweepPartials() {
+        try {
+            blobCache.sweepPartials();
+        } catch (IOException e) {
+            LoginController.LOG.warn("Cannot sweep partial downloads: " + e.getMessage());
         }
     }
 
+    /**
+     * Sends a single HEARTBEAT frame to the server.
+     */
+    private static void sendHeartbeat() {
+        ByteBuffer sendData = LoginController.BUFFER_POOL.acquire();
+        try {
+            InetAddress serverAddress = InetAddress.getByName(LoginController.SERVER_IP); // Get server address.
+            FrameCodec.encodeHeartbeat(sendData);
+            LoginController.clientChannel.send(sendData.flip(), new InetSocketAddress(serverAddress, LoginController.SERVER_PORT));
+        } catch (IOException e) {
+            LoginController.LOG.warn("Heartbeat failed: " + e.getMessage());
+        } finally {
+            LoginController.BUFFER_POOL.release(sendData);
+        }
+    }
 
     /**
      * Handles the "Send" button click event by sending the entered message.
@@ -216,17 +550,16 @@ public class ChatController {
      * @param message the message content.
      */
     private void sendMessage(String message) {
+        ByteBuffer sendData = LoginController.BUFFER_POOL.acquire();
         try {
             InetAddress serverAddress = InetAddress.getByName(LoginController.SERVER_IP); // Get server address.
-
-            String combinedMessage = "TEXT|" + USER_NAME + "|" + message; // Format the message.
-            byte[] sendData = combinedMessage.getBytes(); // Convert to byte array.
-
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, LoginController.SERVER_PORT); // Create packet.
-            LoginController.clientSocket.send(sendPacket); // Send packet to the server.
+            FrameCodec.encodeText(sendData, USER_NAME, message); // Encode the TEXT frame.
+            LoginController.clientChannel.send(sendData.flip(), new InetSocketAddress(serverAddress, LoginController.SERVER_PORT)); // Send packet to the server.
         } catch (Exception e) {
             System.out.println(e.getMessage());
             e.printStackTrace();
+        } finally {
+            LoginController.BUFFER_POOL.release(sendData);
         }
     }
 
@@ -237,20 +570,39 @@ public class ChatController {
      * @param message  the message content.
      */
     private void appendMessage(String userName, String message) {
-        Platform.runLater(() -> {
-            userColors.putIfAbsent(userName, generateRandomColor()); // If the user has not yet set a color, we generate one.
-            Color userColor = userColors.get(userName); // We take the user's color from the map.
-
-            Text userText = new Text(userName + ": "); // Format message with username.
-            userText.setFill(userColor); // Set text color.
+        Platform.runLater(() -> addEntry(ChatEntry.text(userName, colorFor(userName), message)));
+    }
 
-            Text messageText = new Text(message + "\n"); // Format message with message.
-            messageText.setFill(Color.WHITE); // Set text color.
+    /**
+     * Returns the color a user's name is shown in, picking one the first time. Called on the FX thread.
+     *
+     * @param userName the username.
+     * @return the user's color.
+     */
+    private Color colorFor(String userName) {
+        return userColors.computeIfAbsent(userName, name -> generateRandomColor());
+    }
 
-            chatHistoryTextFlow.getChildren().addAll(userText, messageText); // Add message to chat UI.
-            scrollPane.layout();
-            scrollPane.setVvalue(1.0);
-        });
+    /**
+     * Adds an entry to the end of the chat history and scrolls to it. The history is bounded, so the
+     * oldest entries are dropped once it is full, and the cache may evict their images. Called on the
+     * FX thread.
+     *
+     * @param entry the entry to add.
+     */
+    private void addEntry(ChatEntry entry) {
+        ObservableList<ChatEntry> items = chatHistoryView.getItems();
+        items.add(entry);
+        if (items.size() > HISTORY_LIMIT) {
+            List<ChatEntry> dropped = items.subList(0, items.size() - HISTORY_LIMIT);
+            for (ChatEntry old : dropped) {
+                if (old.isImage()) {
+                    blobCache.unpin(old.getImage());
+                }
+            }
+            dropped.clear();
+        }
+        chatHistoryView.scrollTo(items.size() - 1);
     }
 
 
@@ -265,7 +617,7 @@ public class ChatController {
             File selectedFile = fileChooser.showOpenDialog(null); // Show dialog to choose file.
 
             if (selectedFile != null) {
-                sendImage(selectedFile); // Send the selected image.
+                LoginController.TRANSFERS.execute(() -> sendImage(selectedFile)); // Send the selected image without blocking the UI.
             }
         } catch (Exception e) {
             System.out.println(e.getMessage());
@@ -274,23 +626,35 @@ public class ChatController {
     }
 
     /**
-     * Sends an image file to the server.
+     * Sends an image file to the server. The announcement carries the file's hash, and the data is
+     * only sent if the server answers that it does not have that content yet; if an earlier upload of
+     * it was interrupted, only the chunks the server is still missing are sent. The file is streamed
+     * from disk, so its size is not limited by the heap. Runs on its own virtual thread, which spends
+     * most of the upload blocked waiting for acks.
      *
      * @param imageFile the image file to send.
      */
     private void sendImage(File imageFile) {
-        try {
-            DatagramSocket clientSocket = new DatagramSocket(); // Create a new socket for sending.
+        try (DatagramSocket clientSocket = new DatagramSocket(); // Create a new socket for sending.
+             FileChannel file = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ)) {
             InetAddress serverAddress = InetAddress.getByName(LoginController.SERVER_IP); // Get server address.
 
             String fileName = imageFile.getName(); // Get the file name.
-            String combinedMessage = USER_NAME + "|" + fileName; // Format message with file name.
-            byte[] fileNameBytes = combinedMessage.getBytes(); // Convert to byte array.
-            DatagramPacket fileStatPacket = new DatagramPacket(fileNameBytes, fileNameBytes.length, serverAddress, LoginController.SERVER_PORT); // Create packet.
-            clientSocket.send(fileStatPacket); // Send file information.
-
-            byte[] fileByteArray = readFileToByteArray(imageFile); // Read the file into a byte array.
-            sendFile(clientSocket, fileByteArray, serverAddress); // Send file data.
+            int transferId = random.nextInt(); // Identifies this upload's chunks.
+            byte[] hash = ContentHash.of(file);
+            blobCache.add(imageFile.toPath(), hash); // So the copy the server sends back is not downloaded.
+            ByteBuffer fileMeta = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+            FrameCodec.encodeFileMeta(fileMeta, transferId, USER_NAME, fileName, file.size(), hash, null); // Announce file name, size, hash and transfer ID.
+            DatagramPacket fileStatPacket = new DatagramPacket(fileMeta.array(), fileMeta.position(), serverAddress, LoginController.SERVER_PORT); // Create packet.
+
+            ByteBuffer status = probe(clientSocket, fileStatPacket, transferId); // Send file information and wait for the answer.
+            if (status == null) {
+                LoginController.LOG.error("Server did not answer the announcement of " + fileName);
+            } else if ((FrameCodec.flags(status, 0) & FrameCodec.FLAG_HAVE) != 0) {
+                LoginController.LOG.info("Server already has " + fileName + ", upload skipped");
+            } else {
+                sendFile(clientSocket, file, serverAddress, transferId, FrameCodec.sequence(status, 0), FrameCodec.ackBitmap(status, 0)); // Send the data the server lacks.
+            }
         } catch (Exception ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
@@ -298,83 +662,52 @@ public class ChatController {
     }
 
     /**
-     * Reads a file and converts its content to a byte array.
+     * Announces an upload and waits for the server's FILE_STATUS reply, repeating the announcement
+     * a few times if it goes unanswered.
      *
-     * @param file the file to read.
-     * @return the byte array containing the file's data.
+     * @param socket     the upload socket, which the reply is addressed to.
+     * @param fileMeta   the FILE_META packet announcing the upload.
+     * @param transferId the transfer ID of the upload.
+     * @return the FILE_STATUS frame the server answered with, or null if it never answered.
+     * @throws IOException if the socket fails.
      */
-    public static byte[] readFileToByteArray(File file) {
-        FileInputStream fis;
-        byte[] bArray = new byte[(int) file.length()]; // Create byte array of file size.
-        try {
-            fis = new FileInputStream(file); // Open file input stream.
-            int bytesRead = fis.read(bArray); // Read file data into array.
-            while (bytesRead != -1 && fis.available() > 0) {
-                bytesRead = fis.read(bArray, bytesRead, fis.available()); // Read remaining data.
+    private static ByteBuffer probe(DatagramSocket socket, DatagramPacket fileMeta, int transferId) throws IOException {
+        byte[] reply = new byte[FrameCodec.MAX_DATAGRAM];
+        DatagramPacket replyPacket = new DatagramPacket(reply, reply.length);
+        socket.setSoTimeout(PROBE_TIMEOUT);
+        for (int attempt = 0; attempt < PROBE_ATTEMPTS; attempt++) {
+            socket.send(fileMeta);
+            long deadline = System.currentTimeMillis() + PROBE_TIMEOUT;
+            try {
+                while (System.currentTimeMillis() < deadline) {
+                    socket.receive(replyPacket);
+                    ByteBuffer frame = ByteBuffer.wrap(reply, 0, replyPacket.getLength());
+                    if (FrameCodec.isValid(frame, 0) && FrameCodec.type(frame, 0) == FrameCodec.FILE_STATUS
+                            && FrameCodec.transferId(frame, 0) == transferId) {
+                        return frame;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Announcement or reply lost; announce again.
             }
-            fis.close(); // Close the file input stream.
-        } catch (IOException ioExp) {
-            System.out.println(ioExp.getMessage());
-            ioExp.printStackTrace();
         }
-        return bArray; // Return the byte array.
+        return null;
     }
 
     /**
-     * Sends file data in chunks over a UDP connection.
+     * Sends file data in chunks over a UDP connection, keeping a window of chunks in flight.
      *
      * @param socket          the UDP socket to use for sending.
-     * @param fileByteArray   the byte array containing the file's data.
+     * @param file            the channel to read the file's data from.
      * @param serverAddress   the server's IP address.
+     * @param transferId      the transfer ID announced to the server.
+     * @param received        the server already has every chunk up to this sequence number.
+     * @param receivedBitmap  the other chunks the server already has, as in an acknowledgment.
      */
-    private static void sendFile(DatagramSocket socket, byte[] fileByteArray, InetAddress serverAddress) {
+    private static void sendFile(DatagramSocket socket, FileChannel file, InetAddress serverAddress, int transferId, int received, long receivedBitmap) {
         try {
-            int sequenceNumber = 0; // Sequence number for each chunk.
-            int ackSequence = 0;
-
-            for (int i = 0; i < fileByteArray.length; i = i + 1021) { // Loop through the file data in chunks.
-                sequenceNumber += 1; // Increment sequence number.
-                byte[] message = new byte[1024]; // Create message buffer.
-                message[0] = (byte) (sequenceNumber >> 8); // Store high byte of sequence number.
-                message[1] = (byte) (sequenceNumber); // Store low byte of sequence number.
-
-                // Have we reached the end of the file?
-                if ((i + 1021) >= fileByteArray.length) { // We have reached the end of the file (last datagram to send).
-                    message[2] = (byte) (1); // Indicate end of file.
-                    System.arraycopy(fileByteArray, i, message, 3, fileByteArray.length - i); // Copy remaining data.
-                } else { // We have not reached the end of the file, we are still sending datagrams.
-                    message[2] = (byte) (0); // Indicate not end of file.
-                    System.arraycopy(fileByteArray, i, message, 3, 1021); // Copy chunk data.
-                }
-
-                DatagramPacket sendPacket = new DatagramPacket(message, message.length, serverAddress, LoginController.SERVER_PORT); // Create packet.
-                socket.send(sendPacket); // Send the packet.
-                System.out.println("Sent: Sequence number = " + sequenceNumber); // Log sent packet.
-
-                boolean ackRec; // Was the datagram received?
-                while (true) {
-                    byte[] ack = new byte[2]; // Buffer for acknowledgment.
-                    DatagramPacket backpack = new DatagramPacket(ack, ack.length);
-
-                    try {
-                        socket.setSoTimeout(50); // Set timeout for acknowledgment.
-                        socket.receive(backpack); // Wait for acknowledgment.
-                        ackSequence = ((ack[0] & 0xff) << 8) + (ack[1] & 0xff); // Calculate the sequence number.
-                        ackRec = true; // We received the ack.
-                    } catch (SocketTimeoutException e) {
-                        System.out.println("Socket timed out waiting for ack");
-                        ackRec = false; // We didn't receive the ack.
-                    }
-
-                    if ((ackSequence == sequenceNumber) && (ackRec)) {
-                        System.out.println("Ack received: Sequence Number = " + ackSequence);
-                        break; // Acknowledgment matches sent sequence number.
-                    } else {
-                        socket.send(sendPacket); // Resend packet on timeout.
-                        System.out.println("Resending: Sequence Number = " + sequenceNumber);
-                    }
-                }
-            }
+            new ChunkSender(socket, serverAddress, LoginController.SERVER_PORT, transferId, SERVER_RTT, LoginController.LOG)
+                    .send(file, received, receivedBitmap);
         } catch (Exception e) {
             System.out.println(e.getMessage());
             e.printStackTrace();
@@ -382,26 +715,84 @@ public class ChatController {
     }
 
     /**
-     * Appends an image to the chat UI.
+     * Shows a received image: in its own window if it is an original the user asked for, otherwise in
+     * the chat.
      *
-     * @param userName the username of the sender.
-     * @param image    the path to the image file.
+     * @param download the finished or skipped download.
+     * @param file     the cached image file.
      */
-    private void appendImage(String userName, String image) {
-        Platform.runLater(() -> {
-            userColors.putIfAbsent(userName, generateRandomColor()); // If the user has not yet set a color, we generate one.
-            Color userColor = userColors.get(userName); // We take the user's color from the map.
+    private void showImage(TransferSession download, File file) {
+        if (pendingOriginals.remove(ContentHash.toHex(download.getHash()))) {
+            showOriginal(download.getFileName(), file);
+        } else {
+            appendImage(download.getUserName(), file, download.getFileName(), download.getOriginal());
+        }
+    }
 
-            Label userNameLabel = new Label(userName + ":"); // Label for username.
-            userNameLabel.setTextFill(userColor); // Set label color.
+    /**
+     * Opens the full-size original of a preview, asking the server for it unless it is cached.
+     *
+     * @param userName the username of the sender.
+     * @param fileName the name of the image file.
+     * @param original the SHA-256 of the original.
+     */
+    private void fetchOriginal(String userName, String fileName, byte[] original) {
+        File cached = blobCache.lookup(original);
+        if (cached != null) {
+            showOriginal(fileName, cached);
+            return;
+        }
+        pendingOriginals.add(ContentHash.toHex(original));
+        LoginController.TRANSFERS.execute(() -> requestOriginal(userName, fileName, original)); // Resolve and send without blocking the UI.
+    }
 
-            ImageView imageView = new ImageView(new Image(image)); // Create ImageView with the image.
-            imageView.setPreserveRatio(true); // Preserve aspect ratio.
-            imageView.setFitWidth(200); // Set image width.
-            imageView.setFitHeight(200); // Set image height.
-            Text spacer = new Text("\n"); // Add vertical space between messages
+    /**
+     * Sends the server a FETCH for the original of a preview; the reply arrives as a download.
+     *
+     * @param userName the username of the sender.
+     * @param fileName the name of the image file.
+     * @param original the SHA-256 of the original.
+     */
+    private void requestOriginal(String userName, String fileName, byte[] original) {
+        ByteBuffer fetch = LoginController.BUFFER_POOL.acquire();
+        try {
+            FrameCodec.encodeFetch(fetch, original, userName, fileName);
+            InetAddress serverAddress = InetAddress.getByName(LoginController.SERVER_IP);
+            LoginController.clientChannel.send(fetch.flip(), new InetSocketAddress(serverAddress, LoginController.SERVER_PORT));
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            e.printStackTrace();
+        } finally {
+            LoginController.BUFFER_POOL.release(fetch);
+        }
+    }
 
-            chatHistoryTextFlow.getChildren().addAll(userNameLabel, imageView, spacer); // Add username and image to chat UI.
+    /**
+     * Opens a window showing an image at full size.
+     *
+     * @param fileName the name of the image file, used as the window title.
+     * @param file     the image file.
+     */
+    private void showOriginal(String fileName, File file) {
+        Platform.runLater(() -> {
+            ImageView imageView = new ImageView(new Image(file.toURI().toString(), true)); // Full size, but still decoded off the FX thread.
+            Stage stage = new Stage();
+            stage.setTitle(fileName);
+            stage.setScene(new Scene(new ScrollPane(imageView), 800, 600));
+            stage.show();
         });
     }
-}
\ No newline at end of file
+
+    /**
+     * Appends an image to the chat UI. A preview opens its original when clicked; see {@link ChatCell}.
+     *
+     * @param userName the username of the sender.
+     * @param image    the image file.
+     * @param fileName the name of the image file.
+     * @param original the SHA-256 of the original if the image is a preview, otherwise null.
+     */
+    private void appendImage(String userName, File image, String fileName, byte[] original) {
+        blobCache.pin(image); // Kept in the cache while the history shows it; released when the entry is dropped.
+        Platform.runLater(() -> addEntry(ChatEntry.image(userName, colorFor(userName), image, fileName, original)));
+    }
+}
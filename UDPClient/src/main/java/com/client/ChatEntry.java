@@ -0,0 +1,81 @@
+package com.client;
+
+import java.io.File;
+
+import javafx.scene.paint.Color;
+
+/**
+ * One line of the chat history: a text message or an image, with the user who sent it. The history
+ * view keeps only these small records; the nodes that show them are recycled as the user scrolls.
+ */
+public final class ChatEntry {
+    private final String userName; // Username of the sender.
+    private final Color userColor; // Color the sender's name is shown in.
+    private final String message; // Text of the message, or null for an image.
+    private final File image; // Cached image file, or null for a text message.
+    private final String fileName; // Name the image was sent under, or null for a text message.
+    private final byte[] original; // SHA-256 of the original if the image is a preview, otherwise null.
+
+    private ChatEntry(String userName, Color userColor, String message, File image, String fileName, byte[] original) {
+        this.userName = userName;
+        this.userColor = userColor;
+        this.message = message;
+        this.image = image;
+        this.fileName = fileName;
+        this.original = original;
+    }
+
+    /**
+     * Creates an entry for a text message.
+     *
+     * @param userName  The username of the sender.
+     * @param userColor The color of the sender's name.
+     * @param message   The text of the message.
+     * @return The new entry.
+     */
+    public static ChatEntry text(String userName, Color userColor, String message) {
+        return new ChatEntry(userName, userColor, message, null, null, null);
+    }
+
+    /**
+     * Creates an entry for an image.
+     *
+     * @param userName  The username of the sender.
+     * @param userColor The color of the sender's name.
+     * @param image     The cached image file.
+     * @param fileName  The name the image was sent under.
+     * @param original  The SHA-256 of the original if the image is a preview, otherwise null.
+     * @return The new entry.
+     */
+    public static ChatEntry image(String userName, Color userColor, File image, String fileName, byte[] original) {
+        return new ChatEntry(userName, userColor, null, image, fileName, original);
+    }
+
+    public boolean isImage() {
+        return image != null;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public Color getUserColor() {
+        return userColor;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public File getImage() {
+        return image;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public byte[] getOriginal() {
+        return original;
+    }
+}
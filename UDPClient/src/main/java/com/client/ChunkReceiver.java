@@ -0,0 +1,320 @@
+package com.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Receiving side of the selective-repeat transfer.
+ *
+ * The target file is already at its announced length, and every chunk is written straight from the
+ * datagram buffer to its own offset, whether it arrived in order or not, so nothing has to be held
+ * back for reassembly. Only which chunks have arrived is tracked, one bit per chunk, to answer each
+ * one with a cumulative ack plus a SACK bitmap, or to ask for the missing ones when the sender does
+ * not wait for acks, as on a multicast group.
+ *
+ * When the sender adds parity, a group missing a single chunk is repaired on the spot: the other
+ * chunks of the group are read back from the file and XORed with the parity. Parity for a group
+ * missing more than one chunk is kept for a while, in case a resent chunk leaves only one missing.
+ *
+ * Which chunks have arrived can be saved with {@link #progress()} and handed to a later receiver
+ * for the same file, so an interrupted transfer resumes where it stopped. {@link #saveProgress}
+ * keeps a progress file of fixed size up to date by writing only the words that changed, so saving
+ * often costs no more than the chunks received in between.
+ */
+public class ChunkReceiver {
+    private static final int MAX_PARITIES = 16; // Parity frames kept for groups still missing several chunks.
+
+    private final FileChannel file; // Destination of the chunks, pre-allocated to the file's size.
+    private final int transferId; // ID of the transfer this receiver belongs to.
+    private final long fileSize; // Size of the file, as announced by the sender.
+    private final int chunkCount; // Number of chunks the file is sent in.
+    private final BitSet received = new BitSet(); // Chunks received, by sequence number; grows with the furthest chunk seen.
+    private final BitSet unsaved = new BitSet(); // 64-bit words of received changed since saveProgress, by index.
+    private int foundLast = 0; // Last sequence number of the contiguous run received from the start.
+    private final Map<Integer, ByteBuffer> parities = new LinkedHashMap<>(); // Copies of PARITY frames waiting for their group to lack only one chunk, by first sequence number.
+    private boolean recovered; // Whether a chunk was rebuilt since the last ack.
+
+    /**
+     * Creates a receiver writing to the given file.
+     *
+     * @param file       The channel the chunks are written to.
+     * @param transferId The ID of the transfer, as announced by the sender.
+     * @param fileSize   The size of the file, as announced by the sender.
+     */
+    public ChunkReceiver(FileChannel file, int transferId, long fileSize) {
+        this(file, transferId, fileSize, null);
+    }
+
+    /**
+     * Creates a receiver writing to a file that may already hold chunks from an interrupted transfer.
+     *
+     * @param file       The channel the chunks are written to.
+     * @param transferId The ID of the transfer, as announced by the sender.
+     * @param fileSize   The size of the file, as announced by the sender.
+     * @param progress   What {@link #progress()} returned for the file, or null if it holds nothing yet.
+     */
+    public ChunkReceiver(FileChannel file, int transferId, long fileSize, byte[] progress) {
+        this.file = file;
+        this.transferId = transferId;
+        this.fileSize = fileSize;
+        this.chunkCount = (int) Math.max(1, (fileSize + ChunkSender.CHUNK_SIZE - 1) / ChunkSender.CHUNK_SIZE);
+        if (progress != null) {
+            BitSet saved = BitSet.valueOf(progress);
+            saved.clear(0);
+            saved.clear(chunkCount + 1, Math.max(chunkCount + 1, saved.length())); // Ignore anything outside the file.
+            received.or(saved);
+            foundLast = received.nextClearBit(1) - 1;
+        }
+    }
+
+    /**
+     * Processes a CHUNK frame. The datagram buffer still belongs to the caller afterwards; its
+     * position and limit are restored before returning.
+     *
+     * @param datagram The buffer holding the datagram.
+     * @param at       The position of the frame within the buffer.
+     * @return true if the chunk was new, false if it was a duplicate, outside the file, or belonged to
+     * another transfer.
+     * @throws IOException If writing to the output fails.
+     */
+    public boolean accept(ByteBuffer datagram, int at) throws IOException {
+        if (FrameCodec.type(datagram, at) != FrameCodec.CHUNK || FrameCodec.transferId(datagram, at) != transferId) {
+            return false; // Not part of this transfer.
+        }
+        int sequenceNumber = FrameCodec.sequence(datagram, at);
+        long offset = (long) (sequenceNumber - 1) * ChunkSender.CHUNK_SIZE; // Where the chunk goes in the file.
+
+        if (sequenceNumber <= foundLast || sequenceNumber > chunkCount || received.get(sequenceNumber)) {
+            return false; // Already have it, or not part of the file.
+        }
+        if (offset + FrameCodec.payloadLength(datagram, at) > fileSize) {
+            return false; // Would write past the announced end of the file.
+        }
+
+        int position = datagram.position();
+        int limit = datagram.limit();
+        datagram.limit(FrameCodec.next(datagram, at)).position(FrameCodec.payloadOffset(at)); // Select the payload.
+        try {
+            while (datagram.hasRemaining()) {
+                offset += file.write(datagram, offset); // Straight to its place in the file, in order or not.
+            }
+        } finally {
+            datagram.limit(limit).position(position);
+        }
+        markReceived(sequenceNumber);
+        for (Iterator<ByteBuffer> kept = parities.values().iterator(); kept.hasNext(); ) {
+            ByteBuffer parity = kept.next();
+            int first = FrameCodec.sequence(parity, 0);
+            if (sequenceNumber >= first && sequenceNumber < first + FrameCodec.groupSize(parity, 0) && rebuild(parity)) {
+                kept.remove(); // The group is whole now.
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Processes a PARITY frame, rebuilding the missing chunk of its group if it is the only one.
+     *
+     * @param datagram The buffer holding the datagram.
+     * @param at       The position of the frame within the buffer.
+     * @return true if a chunk was rebuilt.
+     * @throws IOException If reading or writing the file fails.
+     */
+    public boolean acceptParity(ByteBuffer datagram, int at) throws IOException {
+        if (FrameCodec.type(datagram, at) != FrameCodec.PARITY || FrameCodec.transferId(datagram, at) != transferId) {
+            return false; // Not part of this transfer.
+        }
+        int first = FrameCodec.sequence(datagram, at);
+        int size = FrameCodec.groupSize(datagram, at);
+        if (first < 1 || size < 1 || first + size - 1 > chunkCount || parities.containsKey(first)) {
+            return false;
+        }
+        if (missing(first, size) == 0) {
+            return false; // Nothing lost.
+        }
+        ByteBuffer parity = ByteBuffer.allocate(FrameCodec.next(datagram, at) - at); // Copied; the datagram goes back to its owner.
+        for (int i = 0; i < parity.capacity(); i++) {
+            parity.put(i, datagram.get(at + i));
+        }
+        if (rebuild(parity)) {
+            return true;
+        }
+        if (parities.size() < MAX_PARITIES) {
+            parities.put(first, parity); // Wait for resent chunks.
+        }
+        return false;
+    }
+
+    /**
+     * Rebuilds the missing chunk of a parity's group if it is the only one missing.
+     *
+     * @return true if the group is now complete, false if it still misses more than one chunk.
+     */
+    private boolean rebuild(ByteBuffer parity) throws IOException {
+        int first = FrameCodec.sequence(parity, 0);
+        int size = FrameCodec.groupSize(parity, 0);
+        int missing = missing(first, size);
+        if (missing != 1) {
+            return missing == 0;
+        }
+        int lost = received.nextClearBit(first);
+        int length = chunkLength(lost);
+        if (length > FrameCodec.payloadLength(parity, 0)) {
+            return false; // Parity too short to cover the chunk; not from a well-behaved sender.
+        }
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = parity.get(FrameCodec.payloadOffset(0) + i);
+        }
+        ByteBuffer other = ByteBuffer.allocate(ChunkSender.CHUNK_SIZE);
+        for (int sequenceNumber = first; sequenceNumber < first + size; sequenceNumber++) {
+            if (sequenceNumber == lost) {
+                continue;
+            }
+            long offset = chunkOffset(sequenceNumber);
+            other.clear().limit(Math.min(length, chunkLength(sequenceNumber)));
+            while (other.hasRemaining()) {
+                if (file.read(other, offset + other.position()) < 0) {
+                    throw new IOException("Chunk " + sequenceNumber + " missing from the file");
+                }
+            }
+            for (int i = 0; i < other.limit(); i++) {
+                data[i] ^= other.get(i);
+            }
+        }
+        ByteBuffer chunk = ByteBuffer.wrap(data);
+        long offset = chunkOffset(lost);
+        while (chunk.hasRemaining()) {
+            offset += file.write(chunk, offset);
+        }
+        markReceived(lost);
+        recovered = true;
+        return true;
+    }
+
+    /**
+     * @return The number of chunks of a group that have not arrived.
+     */
+    private int missing(int first, int size) {
+        return size - received.get(first, first + size).cardinality();
+    }
+
+    /**
+     * Records a chunk as written and moves past every chunk now contiguous with the start.
+     */
+    private void markReceived(int sequenceNumber) {
+        received.set(sequenceNumber);
+        unsaved.set(sequenceNumber / Long.SIZE);
+        foundLast = received.nextClearBit(foundLast + 1) - 1;
+    }
+
+    private long chunkOffset(int sequenceNumber) {
+        return (long) (sequenceNumber - 1) * ChunkSender.CHUNK_SIZE;
+    }
+
+    private int chunkLength(int sequenceNumber) {
+        return (int) Math.min(ChunkSender.CHUNK_SIZE, fileSize - chunkOffset(sequenceNumber));
+    }
+
+    /**
+     * Encodes the ACK frame describing everything received so far: the cumulative sequence number
+     * plus a bitmap in which bit i reports whether chunk {@code cumulative + 2 + i} has arrived.
+     *
+     * @param out The buffer the frame is written to, at its current position.
+     */
+    public void ack(ByteBuffer out) {
+        FrameCodec.encodeAck(out, transferId, foundLast, sackBitmap(), recovered);
+        recovered = false;
+    }
+
+    /**
+     * @return The SACK bitmap of an ack: bit i is set if chunk {@code getFoundLast() + 2 + i} has arrived.
+     */
+    public long sackBitmap() {
+        long bitmap = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (received.get(foundLast + 2 + bit)) {
+                bitmap |= 1L << bit;
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return The chunks received so far, one bit per sequence number, for resuming the transfer later.
+     */
+    public byte[] progress() {
+        return received.toByteArray();
+    }
+
+    /**
+     * @return The size of the progress file {@link #saveProgress} keeps, in bytes: one bit per
+     *         sequence number, in whole 64-bit words.
+     */
+    public int progressLength() {
+        return (chunkCount / Long.SIZE + 1) * Long.BYTES;
+    }
+
+    /**
+     * Writes the words of the progress that changed since the last save into a file of
+     * {@link #progressLength()} bytes holding the earlier progress, each at its own offset. The file
+     * then reads back like {@link #progress()}, padded with zeros.
+     *
+     * @param out The progress file.
+     * @throws IOException If writing fails.
+     */
+    public void saveProgress(FileChannel out) throws IOException {
+        for (int from = unsaved.nextSetBit(0); from >= 0; from = unsaved.nextSetBit(from)) {
+            int to = unsaved.nextClearBit(from); // Changed words next to each other go in one write.
+            long[] words = received.get(from * Long.SIZE, to * Long.SIZE).toLongArray();
+            ByteBuffer run = ByteBuffer.allocate((to - from) * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN); // The byte order of BitSet.toByteArray.
+            for (long word : words) {
+                run.putLong(word);
+            }
+            run.clear(); // Whole run; trailing words that are zero were left out of words.
+            long offset = (long) from * Long.BYTES;
+            while (run.hasRemaining()) {
+                offset += out.write(run, offset);
+            }
+            from = to;
+        }
+        unsaved.clear();
+    }
+
+    /**
+     * Encodes a NACK frame asking for the first missing chunk and for the missing ones among the 64
+     * after it. Must not be called once the transfer is complete.
+     *
+     * @param out The buffer the frame is written to, at its current position.
+     */
+    public void nack(ByteBuffer out) {
+        int firstMissing = foundLast + 1;
+        long bitmap = 0;
+        for (int bit = 0; bit < 64 && firstMissing + 1 + bit <= chunkCount; bit++) {
+            if (!received.get(firstMissing + 1 + bit)) {
+                bitmap |= 1L << bit;
+            }
+        }
+        FrameCodec.encodeNack(out, transferId, firstMissing, bitmap);
+    }
+
+    /**
+     * @return The last sequence number of the contiguous run received from the start of the file.
+     */
+    public int getFoundLast() {
+        return foundLast;
+    }
+
+    /**
+     * @return true once every chunk up to and including the last one has been written.
+     */
+    public boolean isComplete() {
+        return foundLast == chunkCount;
+    }
+}
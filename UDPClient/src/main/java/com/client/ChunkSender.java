@@ -0,0 +1,338 @@
+package com.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends file data over UDP using a sliding-window selective-repeat scheme.
+ *
+ * The file is streamed: each chunk is read from its offset straight into the outgoing datagram, and
+ * the only per-chunk state kept is for the chunks inside the window, so memory use does not depend on
+ * the size of the file. Sequence numbers are 32-bit and offsets 64-bit, which allows files of up to
+ * about two terabytes.
+ * Up to {@link #WINDOW_SIZE} chunks are kept in flight at once. The receiver answers with a
+ * cumulative acknowledgment plus a SACK bitmap, so only chunks that were actually lost are resent.
+ * Every chunk and acknowledgment carries the transfer ID, so several transfers can share a socket.
+ * Retransmission timers follow the round-trip time measured by the peer's {@link RttEstimator}.
+ * How many chunks are actually in flight is decided by a per-transfer {@link CongestionController},
+ * and a {@link TokenBucket} spreads them over the round trip instead of sending them in one burst.
+ * Once chunks start getting lost, a {@link FecEncoder} adds parity after every group of chunks, so
+ * the receiver can rebuild a lost chunk on its own instead of waiting for it to be resent.
+ * A transfer that resumes an interrupted one starts from what the receiver reported having already,
+ * in the same form as an acknowledgment, and skips those chunks.
+ */
+public class ChunkSender {
+    public static final int CHUNK_SIZE = FrameCodec.MAX_PAYLOAD; // File bytes carried by each datagram.
+    public static final int WINDOW_SIZE = 32; // Maximum number of unacknowledged chunks in flight.
+    private static final int PACING_BURST = 4; // Fewest datagrams the pacer lets out back to back.
+    private static final double SLOW_START_GAIN = 2.0; // Pacing rate over cwnd / SRTT while the window doubles each round trip.
+    private static final double PACING_GAIN = 1.25; // Pacing rate over cwnd / SRTT afterwards, leaving room to probe.
+    private static final long PACING_QUANTUM = TimeUnit.MILLISECONDS.toNanos(1); // Shortest wait setSoTimeout can express, so the pacer releases this much sending time at once.
+    private static final long MAX_SILENCE = TimeUnit.SECONDS.toNanos(10); // Time without progress before giving up.
+
+    private final DatagramSocket socket; // Socket used for sending chunks and receiving acknowledgments.
+    private final InetAddress address; // Address of the receiver.
+    private final int port; // Port of the receiver.
+    private final int transferId; // Identifies this transfer in every chunk and acknowledgment.
+    private final RttEstimator rtt; // Round-trip estimate for the receiver, shared with other transfers to it.
+    private final LogSink log; // Destination for progress messages and per-chunk counters.
+    private final CongestionController congestion = new CongestionController(WINDOW_SIZE); // Chunks this transfer may have in flight.
+    private final TokenBucket pacer = new TokenBucket((long) PACING_BURST * FrameCodec.MAX_DATAGRAM); // Spaces chunks out over the round trip.
+    private final ByteBuffer packetBuffer = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM); // Reused for every outgoing chunk.
+    private final DatagramPacket sendPacket; // Reused for every outgoing chunk.
+    private final FecEncoder fec; // Adds parity to the chunks sent for the first time, as loss requires.
+    private final ByteBuffer parityBuffer = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM); // Parity waiting to be sent.
+
+    /**
+     * Creates a sender bound to a single receiver.
+     *
+     * @param socket     The DatagramSocket used for sending chunks and receiving acknowledgments.
+     * @param address    The address of the receiver.
+     * @param port       The port of the receiver.
+     * @param transferId The ID announced to the receiver for this transfer.
+     * @param rtt        The round-trip estimate for the receiver.
+     * @param log        The destination for progress messages and per-chunk counters.
+     */
+    public ChunkSender(DatagramSocket socket, InetAddress address, int port, int transferId, RttEstimator rtt, LogSink log) {
+        this.socket = socket;
+        this.address = address;
+        this.port = port;
+        this.transferId = transferId;
+        this.rtt = rtt;
+        this.log = log;
+        this.sendPacket = new DatagramPacket(packetBuffer.array(), 0, address, port);
+        this.fec = new FecEncoder(transferId, 0);
+    }
+
+    /**
+     * Sends the whole file, returning once every chunk has been acknowledged. The file is only read
+     * with positional reads, which leave the channel's position alone, so the same channel can be
+     * handed to several senders at once.
+     *
+     * @param file The channel to read the file's data from.
+     * @return true if the receiver acknowledged every chunk, false if the transfer was abandoned.
+     * @throws IOException If the socket fails or the file cannot be read.
+     */
+    public boolean send(FileChannel file) throws IOException {
+        return send(file, 0, 0);
+    }
+
+    /**
+     * Sends the chunks of the file the receiver does not have yet, returning once every chunk has
+     * been acknowledged.
+     *
+     * @param file           The channel to read the file's data from.
+     * @param received       The receiver already has every chunk up to this sequence number.
+     * @param receivedBitmap Bit i is set if the receiver already has chunk {@code received + 2 + i}.
+     * @return true if the receiver acknowledged every chunk, false if the transfer was abandoned.
+     * @throws IOException If the socket fails or the file cannot be read.
+     */
+    public boolean send(FileChannel file, int received, long receivedBitmap) throws IOException {
+        long fileLength = file.size();
+        long chunks = Math.max(1, (fileLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        if (chunks > Integer.MAX_VALUE - WINDOW_SIZE) {
+            throw new IOException("File too large to send: " + fileLength + " bytes");
+        }
+        int totalChunks = (int) chunks; // Number of datagrams to send.
+        // Per-chunk state for the window only, indexed by sequence number modulo the window size.
+        boolean[] acked = new boolean[WINDOW_SIZE]; // Acknowledged chunks.
+        boolean[] resent = new boolean[WINDOW_SIZE]; // Chunks sent more than once; Karn's rule keeps them out of RTT samples.
+        long[] sentAt = new long[WINDOW_SIZE]; // System.nanoTime() when each chunk was last (re)sent.
+        ByteBuffer ackBuffer = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM); // Buffer for acknowledgments.
+        DatagramPacket backpack = new DatagramPacket(ackBuffer.array(), ackBuffer.capacity());
+
+        received = Math.max(0, Math.min(received, totalChunks));
+        if (received > 0 || receivedBitmap != 0) {
+            log.info("Resuming transfer after chunk " + received + " of " + totalChunks);
+        }
+        int base = received + 1; // Lowest unacknowledged sequence number.
+        int next = received + 1; // Next sequence number that has never been sent.
+        int inFlight = 0; // Chunks sent and not yet acknowledged.
+        long lastProgress = System.nanoTime(); // When the window last moved.
+        boolean parityPending = false; // A group is complete and its parity not sent yet.
+
+        while (base <= totalChunks) {
+            // Send new chunks as far as the congestion window, the receiver's window and the pacer allow.
+            // A group's parity goes out right behind its last chunk, even if the window is full.
+            long pacingDelay = 0;
+            while (parityPending || (inFlight < congestion.window() && next < base + WINDOW_SIZE && next <= totalChunks)) {
+                int skip = next - received - 2; // Bit of the resume bitmap reporting this chunk.
+                if (!parityPending && skip >= 0 && skip < 64 && (receivedBitmap & (1L << skip)) != 0) {
+                    if (fec.endGroup()) {
+                        fec.writeParity(parityBuffer);
+                        parityPending = true;
+                    }
+                    acked[slot(next)] = true; // The receiver kept it from an interrupted transfer.
+                    next++;
+                    continue;
+                }
+                pacingDelay = pacer.tryConsume(FrameCodec.MAX_DATAGRAM);
+                if (pacingDelay > 0) {
+                    break; // Spend the wait reading acks.
+                }
+                if (parityPending) {
+                    sendPacket.setData(parityBuffer.array(), 0, parityBuffer.limit());
+                    socket.send(sendPacket);
+                    log.count(LogSink.Counter.PARITY_SENT);
+                    parityPending = false;
+                    continue;
+                }
+                sendChunk(file, fileLength, next, totalChunks);
+                if (fec.add(packetBuffer, 0)) {
+                    fec.writeParity(parityBuffer);
+                    parityPending = true;
+                }
+                acked[slot(next)] = false; // The slot last held a chunk that has left the window.
+                resent[slot(next)] = false;
+                sentAt[slot(next)] = System.nanoTime();
+                inFlight++;
+                next++;
+            }
+            int previousStart = base;
+            while (base < next && acked[slot(base)]) {
+                base++; // Slide the window past chunks that were skipped.
+            }
+            if (base != previousStart) {
+                continue; // The window has room again.
+            }
+
+            long oldest = Long.MAX_VALUE; // Send time of the oldest chunk still waiting for an ack.
+            for (int seq = base; seq < next; seq++) {
+                if (!acked[slot(seq)]) {
+                    oldest = Math.min(oldest, sentAt[slot(seq)]);
+                }
+            }
+            long remaining = oldest == Long.MAX_VALUE ? Long.MAX_VALUE : oldest + rtt.getRto() - System.nanoTime();
+            boolean pacedWait = pacingDelay > 0 && pacingDelay < remaining; // Waking up to send, not because a timer expired.
+            if (pacedWait) {
+                remaining = pacingDelay;
+            }
+            long wait = Math.max(1, Math.min(Integer.MAX_VALUE, (remaining + 999_999) / 1_000_000)); // Round up to whole milliseconds.
+
+            try {
+                socket.setSoTimeout((int) wait); // Wait no longer than the oldest chunk's timer or the pacer.
+                backpack.setLength(ackBuffer.capacity());
+                socket.receive(backpack);
+                long receivedAt = System.nanoTime();
+                ackBuffer.clear().limit(backpack.getLength());
+                if (!FrameCodec.isValid(ackBuffer, 0) || FrameCodec.type(ackBuffer, 0) != FrameCodec.ACK
+                        || FrameCodec.transferId(ackBuffer, 0) != transferId) {
+                    continue; // Not an acknowledgment for this transfer.
+                }
+                int cumulative = FrameCodec.sequence(ackBuffer, 0); // Every chunk up to here has arrived.
+                long bitmap = FrameCodec.ackBitmap(ackBuffer, 0);
+
+                // The newest chunk this ack covers for the first time is the one that triggered it.
+                int newlyAcked = 0;
+                boolean sampled = false;
+                long newestSentAt = 0;
+                for (int seq = base; seq <= Math.min(cumulative, next - 1); seq++) {
+                    if (!acked[slot(seq)]) {
+                        acked[slot(seq)] = true;
+                        newlyAcked++;
+                        if (!resent[slot(seq)] && (!sampled || sentAt[slot(seq)] - newestSentAt > 0)) {
+                            newestSentAt = sentAt[slot(seq)];
+                            sampled = true;
+                        }
+                    }
+                }
+                for (int bit = 0; bit < 64; bit++) { // Bit i reports chunk cumulative + 2 + i.
+                    int seq = cumulative + 2 + bit;
+                    if ((bitmap & (1L << bit)) != 0 && seq >= base && seq < next && !acked[slot(seq)]) {
+                        acked[slot(seq)] = true;
+                        newlyAcked++;
+                        if (!resent[slot(seq)] && (!sampled || sentAt[slot(seq)] - newestSentAt > 0)) {
+                            newestSentAt = sentAt[slot(seq)];
+                            sampled = true;
+                        }
+                    }
+                }
+                if (sampled) {
+                    rtt.sample(receivedAt - newestSentAt);
+                }
+                inFlight -= newlyAcked;
+                congestion.onAck(newlyAcked);
+                fec.onDelivered(newlyAcked);
+                if ((FrameCodec.flags(ackBuffer, 0) & FrameCodec.FLAG_RECOVERED) != 0) {
+                    fec.onLoss(); // Lost, even though it did not have to be resent.
+                }
+                updatePacingRate();
+
+                int previousBase = base;
+                while (base < next && acked[slot(base)]) {
+                    base++; // Slide the window past acknowledged chunks.
+                }
+                if (base != previousBase) {
+                    lastProgress = receivedAt;
+                }
+            } catch (SocketTimeoutException e) {
+                if (!pacedWait) {
+                    log.count(LogSink.Counter.ACK_TIMEOUTS);
+                }
+            }
+
+            long now = System.nanoTime();
+            if (now - lastProgress > MAX_SILENCE) {
+                log.warn("Receiver stopped responding, abandoning transfer at sequence number " + base);
+                return false;
+            }
+
+            // Resend only the chunks whose timer has expired, then back off until a fresh sample arrives.
+            long rto = rtt.getRto();
+            boolean expired = false;
+            for (int seq = base; seq < next; seq++) {
+                if (!acked[slot(seq)] && now - sentAt[slot(seq)] >= rto) {
+                    if (pacer.tryConsume(FrameCodec.MAX_DATAGRAM) > 0) {
+                        break; // Still expired on the next pass, when the pacer allows it.
+                    }
+                    congestion.onLoss(seq, next - 1, resent[slot(seq)]);
+                    fec.onLoss();
+                    sendChunk(file, fileLength, seq, totalChunks);
+                    sentAt[slot(seq)] = now;
+                    resent[slot(seq)] = true;
+                    expired = true;
+                    log.count(LogSink.Counter.RETRANSMITS);
+                }
+            }
+            if (expired) {
+                rtt.backoff();
+                updatePacingRate();
+            }
+        }
+        log.info("All chunks acknowledged: " + totalChunks + ", smoothed RTT " + TimeUnit.NANOSECONDS.toMicros(rtt.getSrtt()) + " us");
+        return true;
+    }
+
+    /**
+     * @return The index of a chunk's state in the window-sized arrays.
+     */
+    private static int slot(int sequenceNumber) {
+        return Math.floorMod(sequenceNumber, WINDOW_SIZE);
+    }
+
+    /**
+     * Sets the pacing rate to a little more than one congestion window per smoothed round trip. The
+     * burst covers one pacing quantum, because the sender cannot sleep for less than that while still
+     * reading acks. Until the first RTT sample, the congestion window alone limits the sender.
+     */
+    private void updatePacingRate() {
+        long srtt = rtt.getSrtt();
+        if (srtt > 0) {
+            double gain = congestion.inSlowStart() ? SLOW_START_GAIN : PACING_GAIN;
+            double bytesPerSecond = gain * congestion.window() * FrameCodec.MAX_DATAGRAM * 1e9 / srtt;
+            long burst = Math.max((long) PACING_BURST * FrameCodec.MAX_DATAGRAM, (long) (bytesPerSecond * PACING_QUANTUM / 1e9));
+            pacer.setRate(bytesPerSecond, burst);
+        }
+    }
+
+    /**
+     * Reads a single chunk from the file straight into the datagram, behind its CHUNK header, and sends it.
+     *
+     * @param file           The channel to read the chunk from.
+     * @param fileLength     The length of the file.
+     * @param sequenceNumber The sequence number of the chunk, starting at 1.
+     * @param totalChunks    The number of chunks in the file.
+     * @throws IOException If the file cannot be read or the socket fails.
+     */
+    private void sendChunk(FileChannel file, long fileLength, int sequenceNumber, int totalChunks) throws IOException {
+        readChunk(file, fileLength, transferId, sequenceNumber, totalChunks, packetBuffer);
+        sendPacket.setData(packetBuffer.array(), 0, packetBuffer.limit());
+        socket.send(sendPacket);
+        log.count(LogSink.Counter.CHUNKS_SENT);
+    }
+
+    /**
+     * Builds the CHUNK frame for one chunk of a file, reading the data straight into the buffer
+     * behind the header. The frame starts at the beginning of the buffer, which is left ready to send.
+     *
+     * @param file           The channel to read the chunk from, with a positional read.
+     * @param fileLength     The length of the file.
+     * @param transferId     The ID of the transfer.
+     * @param sequenceNumber The sequence number of the chunk, starting at 1.
+     * @param totalChunks    The number of chunks in the file.
+     * @param out            The buffer the frame is written to, at least {@link FrameCodec#MAX_DATAGRAM} bytes.
+     * @throws IOException If the file cannot be read.
+     */
+    public static void readChunk(FileChannel file, long fileLength, int transferId, int sequenceNumber, int totalChunks, ByteBuffer out) throws IOException {
+        long offset = (long) (sequenceNumber - 1) * CHUNK_SIZE; // Position of the chunk in the file.
+        int length = (int) Math.min(CHUNK_SIZE, fileLength - offset); // The last chunk may be shorter.
+
+        out.clear().position(FrameCodec.HEADER_SIZE).limit(FrameCodec.HEADER_SIZE + length);
+        while (out.hasRemaining()) {
+            if (file.read(out, offset + out.position() - FrameCodec.HEADER_SIZE) < 0) {
+                throw new EOFException("File shrank while being sent");
+            }
+        }
+        out.clear();
+        FrameCodec.writeHeader(out, FrameCodec.CHUNK, sequenceNumber == totalChunks ? FrameCodec.FLAG_LAST : 0,
+                length, sequenceNumber, transferId);
+        out.position(0).limit(FrameCodec.HEADER_SIZE + length);
+    }
+}
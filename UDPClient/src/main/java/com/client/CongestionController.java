@@ -0,0 +1,79 @@
+package com.client;
+
+/**
+ * AIMD congestion window for one transfer, counted in chunks.
+ *
+ * Starts with a small window and doubles it every round trip (slow start) until the first loss or
+ * the slow-start threshold, then grows it by one chunk per round trip (congestion avoidance). A
+ * lost chunk halves the window, at most once per window of data, so a burst of losses from one
+ * overflowing queue counts as a single congestion event. A chunk that is lost again after being
+ * retransmitted means the path is badly congested, and the window drops to one chunk.
+ */
+public class CongestionController {
+    private static final int INITIAL_WINDOW = 4; // Chunks allowed in flight before anything is acknowledged.
+    private static final int MIN_WINDOW = 1; // Never stop sending altogether.
+
+    private final int maxWindow; // Upper bound, set by how far ahead the receiver buffers.
+    private double cwnd = INITIAL_WINDOW; // Congestion window, in chunks.
+    private double ssthresh; // Slow-start threshold, in chunks.
+    private int recoveryPoint; // Highest sequence number sent when the window was last cut.
+
+    /**
+     * Creates a controller for a new transfer.
+     *
+     * @param maxWindow The largest window the receiver can accept, in chunks.
+     */
+    public CongestionController(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.ssthresh = maxWindow;
+    }
+
+    /**
+     * Grows the window for chunks acknowledged for the first time.
+     *
+     * @param newlyAcked The number of chunks the acknowledgment covered for the first time.
+     */
+    public void onAck(int newlyAcked) {
+        for (int i = 0; i < newlyAcked; i++) {
+            if (cwnd < ssthresh) {
+                cwnd += 1; // Slow start: one more chunk per chunk acknowledged.
+            } else {
+                cwnd += 1 / cwnd; // Congestion avoidance: one more chunk per window.
+            }
+        }
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    /**
+     * Shrinks the window because a chunk's retransmission timer expired.
+     *
+     * @param sequenceNumber The chunk that was lost.
+     * @param highestSent    The highest sequence number sent so far.
+     * @param lostBefore     Whether the chunk had already been retransmitted.
+     */
+    public void onLoss(int sequenceNumber, int highestSent, boolean lostBefore) {
+        if (lostBefore) {
+            ssthresh = Math.max(2, cwnd / 2);
+            cwnd = MIN_WINDOW; // Even the retransmission did not get through.
+            recoveryPoint = highestSent;
+        } else if (sequenceNumber > recoveryPoint) {
+            ssthresh = Math.max(2, cwnd / 2);
+            cwnd = ssthresh; // Multiplicative decrease, once per window.
+            recoveryPoint = highestSent;
+        }
+    }
+
+    /**
+     * @return true while the window is still growing exponentially.
+     */
+    public boolean inSlowStart() {
+        return cwnd < ssthresh;
+    }
+
+    /**
+     * @return The number of chunks that may be in flight.
+     */
+    public int window() {
+        return Math.max(MIN_WINDOW, (int) cwnd);
+    }
+}
@@ -0,0 +1,186 @@
+package com.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Lock-free log buffer between the threads that produce events and the one thread that shows them.
+ *
+ * Messages go into a bounded ring; producers never block and never wait for the consumer, and when
+ * the ring is full the message is dropped and counted instead. Events that happen once per packet
+ * are not logged one by one at all: they only increment a {@link Counter}, and the consumer turns
+ * each counter into a single summary line per second, such as "Retransmits in the last second: 42".
+ */
+public class LogSink {
+    /**
+     * Severity of a message. Messages below the sink's level are discarded by the producer.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * Per-packet events that are aggregated rather than logged individually.
+     */
+    public enum Counter {
+        CHUNKS_SENT("Chunks sent"),
+        RETRANSMITS("Retransmits"),
+        PARITY_SENT("Parity chunks sent"),
+        ACK_TIMEOUTS("Ack timeouts"),
+        ACKS_SENT("Acks sent"),
+        DUPLICATES("Duplicate or out-of-window chunks"),
+        RECOVERED("Chunks rebuilt from parity"),
+        MALFORMED("Malformed packets");
+
+        private final String label; // Text shown in the summary line.
+
+        Counter(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * A message taken out of the sink.
+     */
+    public static final class Entry {
+        private final Level level;
+        private final String message;
+
+        Entry(Level level, String message) {
+            this.level = level;
+            this.message = message;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return level == Level.INFO ? message : level + ": " + message;
+        }
+    }
+
+    private static final long SUMMARY_INTERVAL = 1000; // Milliseconds covered by each counter summary.
+
+    private final AtomicReferenceArray<Entry> ring; // Published messages; a null slot has not been written yet.
+    private final int mask; // Capacity - 1, for cheap index wrapping.
+    private final AtomicLong tail = new AtomicLong(); // Next slot a producer will claim.
+    private volatile long head; // Next slot the consumer will read. Only the consumer writes it.
+    private final LongAdder[] counters = new LongAdder[Counter.values().length]; // Aggregated events since the last summary.
+    private final LongAdder dropped = new LongAdder(); // Messages lost because the ring was full.
+    private volatile Level level = Level.INFO; // Lowest level that is kept.
+    private long lastSummary = System.currentTimeMillis(); // When counters were last summarised. Only the consumer uses it.
+
+    /**
+     * Creates a sink holding at most {@code capacity} undrained messages.
+     *
+     * @param capacity The size of the ring, rounded up to a power of two.
+     */
+    public LogSink(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Records one occurrence of a per-packet event. Safe and cheap to call from any thread.
+     *
+     * @param counter The event that happened.
+     */
+    public void count(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    /**
+     * Adds a message to the ring, or drops it if the ring is full or the level is filtered out.
+     *
+     * @param level   The severity of the message.
+     * @param message The message text.
+     */
+    public void log(Level level, String message) {
+        if (level.compareTo(this.level) < 0) {
+            return;
+        }
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head >= ring.length()) {
+                dropped.increment(); // Consumer is behind; never make the producer wait.
+                return;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        ring.set((int) slot & mask, new Entry(level, message));
+    }
+
+    /**
+     * Takes up to {@code max} messages out of the sink, oldest first, followed by the counter
+     * summaries once a second. Must only be called from one thread at a time.
+     *
+     * @param max      The largest number of messages to take in this call.
+     * @param consumer Receives each message.
+     * @return The number of entries handed to the consumer.
+     */
+    public int drain(int max, Consumer<Entry> consumer) {
+        int drained = 0;
+        long current = head;
+        while (drained < max) {
+            int index = (int) current & mask;
+            Entry entry = ring.get(index);
+            if (entry == null) {
+                break; // Empty, or the producer that claimed this slot has not written it yet.
+            }
+            ring.set(index, null);
+            head = ++current; // Frees the slot for producers.
+            consumer.accept(entry);
+            drained++;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastSummary >= SUMMARY_INTERVAL) {
+            lastSummary = now;
+            for (Counter counter : Counter.values()) {
+                long count = counters[counter.ordinal()].sumThenReset();
+                if (count > 0) {
+                    consumer.accept(new Entry(Level.INFO, counter.label + " in the last second: " + count));
+                    drained++;
+                }
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                consumer.accept(new Entry(Level.WARN, "Log messages dropped in the last second: " + lost));
+                drained++;
+            }
+        }
+        return drained;
+    }
+}
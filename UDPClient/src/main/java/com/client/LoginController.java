@@ -9,16 +9,30 @@ import javafx.scene.control.TextField;
 import javafx.stage.Stage;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class LoginController {
     public static final int CLIENT_PORT = 6011; // Port for the client socket
     public static final int SERVER_PORT = 5010; // Port for the server socket
-    public static final int BUFFER_SIZE = 1024; // Buffer size for UDP packets
+    public static final int BUFFER_SIZE = FrameCodec.MAX_DATAGRAM; // Buffer size for UDP packets
     public static final String SERVER_IP = ""; // IP address of the server
-    public static DatagramSocket clientSocket; // Socket for client communication
+    public static final String MULTICAST_GROUP = ""; // Multicast group the server sends messages and images to, or empty if it sends to each client
+    public static final int MULTICAST_PORT = 5011; // Port of the multicast group
+    public static final String MULTICAST_INTERFACE = ""; // Network interface to join the group on, or empty to pick one
+    public static final BufferPool BUFFER_POOL = new BufferPool(BUFFER_SIZE, 128); // Reusable buffers for datagrams sent and received on the client channel
+    public static final LogSink LOG = new LogSink(1024); // Client events, printed to standard output by the log thread
+    public static final ExecutorService TRANSFERS = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("client-transfer-", 0).factory()); // One virtual thread per upload, cancelled when the client stops
+    private static final int LOG_FRAME_INTERVAL = 100; // Milliseconds between batches of log messages printed
+    public static DatagramChannel clientChannel; // Channel for client communication
+    private static ScheduledExecutorService logPrinter; // Drains LOG to standard output
 
     @FXML
     private TextField username; // TextField for entering username
@@ -26,12 +40,14 @@ public class LoginController {
     private Button enterButton; // Button to trigger login action
 
     /**
-     * Initializes the login controller. Sets up the DatagramSocket and defines the action for the enter button.
+     * Initializes the login controller. Sets up the DatagramChannel and defines the action for the enter button.
      */
     @FXML
     public void initialize() {
         try {
-            clientSocket = new DatagramSocket(CLIENT_PORT); // Create a DatagramSocket bound to the client port
+            clientChannel = DatagramChannel.open(); // Create a blocking DatagramChannel bound to the client port
+            clientChannel.bind(new InetSocketAddress(CLIENT_PORT));
+            startLogPrinter();
             enterButton.setOnAction(event -> { // Define the action when the enter button is clicked
                 String user = username.getText(); // Get the entered username
                 if (verifyUsername(user)) { // Verify the username with the server
@@ -46,12 +62,31 @@ public class LoginController {
     }
 
     /**
-     * Stops the client by closing the DatagramSocket if it is open.
+     * Starts the daemon thread that prints the client's log in batches, so per-packet code never
+     * waits on the console.
+     */
+    private static void startLogPrinter() {
+        logPrinter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "client-log");
+            thread.setDaemon(true); // Never keeps the application alive.
+            return thread;
+        });
+        logPrinter.scheduleAtFixedRate(() -> LOG.drain(Integer.MAX_VALUE, System.out::println),
+                LOG_FRAME_INTERVAL, LOG_FRAME_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the client by cancelling the uploads in progress and closing the DatagramChannel if it is open.
      */
     public static void stopClient() {
-        if (clientSocket != null && !clientSocket.isClosed()) {
-            clientSocket.close(); // Close the socket
-            System.out.println("Socket closed."); // Notify that the socket is closed
+        TRANSFERS.shutdownNow(); // Interrupting an upload closes its socket, ending any wait for acks.
+        if (clientChannel != null && clientChannel.isOpen()) {
+            try {
+                clientChannel.close(); // Close the channel
+                System.out.println("Socket closed."); // Notify that the socket is closed
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -66,23 +101,24 @@ public class LoginController {
             System.out.println("Please enter a valid username.");
             return false;
         }
+        ByteBuffer buffer = BUFFER_POOL.acquire();
         try {
-            String message = "CHECK_USERNAME|" + username; // Prepare the message to be sent to the server
-            byte[] sendData = message.getBytes();
-
-            InetAddress serverAddress = InetAddress.getByName(SERVER_IP); // Get the server's IP address and create a packet to send
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, SERVER_PORT);
-            clientSocket.send(sendPacket); // Send the packet to the server
+            FrameCodec.encodeCheckUsername(buffer, username); // Prepare the message to be sent to the server
 
-            byte[] receiveData = new byte[BUFFER_SIZE]; // Prepare to receive the server's response
-            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-            clientSocket.receive(receivePacket); // Receive the response packet
+            InetAddress serverAddress = InetAddress.getByName(SERVER_IP); // Get the server's IP address and send the packet
+            clientChannel.send(buffer.flip(), new InetSocketAddress(serverAddress, SERVER_PORT));
 
-            String response = new String(receivePacket.getData(), 0, receivePacket.getLength()); // Decode the server's response
-            return response.equals("USERNAME_AVAILABLE"); // Check if the username is available
+            buffer.clear(); // Reuse the buffer to receive the server's response
+            clientChannel.receive(buffer); // Receive the response packet
+            buffer.flip(); // Decode the server's response
+            return FrameCodec.isValid(buffer, 0)
+                    && FrameCodec.type(buffer, 0) == FrameCodec.USERNAME_RESULT
+                    && (FrameCodec.flags(buffer, 0) & FrameCodec.FLAG_AVAILABLE) != 0; // Check if the username is available
         } catch (Exception e) {
             System.out.println("The username is not available. Please enter another name.");
             return false;
+        } finally {
+            BUFFER_POOL.release(buffer);
         }
     }
 
@@ -0,0 +1,88 @@
+package com.client;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Tracks which messages of the room's multicast message stream have arrived, so that duplicates
+ * from repairs are dropped and gaps can be reported to the server with a NACK.
+ *
+ * Messages are shown as soon as they arrive, so a repaired message appears after the ones that
+ * overtook it. Tracking starts at the first message received; earlier history is not requested.
+ */
+public class MessageStream {
+    private int delivered = -1; // Last sequence number of the contiguous run received, or -1 before the first message.
+    private final BitSet ahead = new BitSet(); // Messages received past the first gap, by distance from delivered + 1.
+    private int highest; // Highest sequence number seen.
+    private long gapSince; // When the oldest gap opened, in milliseconds, or 0 if there is none.
+
+    /**
+     * Records an arriving message.
+     *
+     * @param sequence The sequence number of the message.
+     * @return true if the message is new and should be shown, false if it is a duplicate.
+     */
+    public boolean accept(int sequence) {
+        if (delivered < 0) {
+            delivered = sequence - 1; // Joined mid-stream.
+        }
+        int distance = sequence - delivered - 1;
+        if (distance < 0 || ahead.get(distance)) {
+            return false;
+        }
+        ahead.set(distance);
+        highest = Math.max(highest, sequence);
+        int run = ahead.nextClearBit(0); // Messages now contiguous with what was delivered.
+        if (run > 0) {
+            delivered += run;
+            ahead.clear(0, run);
+            BitSet rest = ahead.get(run, Math.max(run, ahead.length()));
+            ahead.clear();
+            ahead.or(rest);
+        }
+        if (!hasGap()) {
+            gapSince = 0;
+        } else if (gapSince == 0 || run > 0) {
+            gapSince = System.currentTimeMillis(); // A new oldest gap.
+        }
+        return true;
+    }
+
+    /**
+     * @return true if a message later than a missing one has arrived.
+     */
+    public boolean hasGap() {
+        return delivered >= 0 && highest > delivered + 1;
+    }
+
+    /**
+     * @return Milliseconds the oldest gap has been open, or 0 if there is none.
+     */
+    public long gapAge() {
+        return gapSince == 0 ? 0 : System.currentTimeMillis() - gapSince;
+    }
+
+    /**
+     * Gives up on every missing message, for example once the server can no longer repair them.
+     */
+    public void skipGaps() {
+        delivered = highest;
+        ahead.clear();
+        gapSince = 0;
+    }
+
+    /**
+     * Encodes a NACK frame for the first missing message and the missing ones among the 64 after it.
+     *
+     * @param out The buffer the frame is written to, at its current position.
+     */
+    public void nack(ByteBuffer out) {
+        long bitmap = 0;
+        for (int bit = 0; bit < 64 && delivered + 2 + bit < highest; bit++) {
+            if (!ahead.get(bit + 1)) {
+                bitmap |= 1L << bit;
+            }
+        }
+        FrameCodec.encodeNack(out, 0, delivered + 1, bitmap);
+    }
+}
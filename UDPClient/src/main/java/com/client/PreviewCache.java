@@ -0,0 +1,108 @@
+package com.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javafx.scene.image.Image;
+
+/**
+ * Decoded chat previews, shared by every view that shows the same image and bounded by the memory
+ * their pixels take.
+ *
+ * Images are decoded in the background at the size they are shown at, never at full resolution,
+ * so a large photo costs the UI thread nothing and costs memory only for the pixels on screen.
+ * Until an image has loaded, its weight is estimated from the box it is scaled into. The least
+ * recently used previews are dropped once the cache grows past its limit; a view that shows one
+ * again simply gets it decoded anew. Must only be used from the FX application thread.
+ */
+public class PreviewCache {
+    private static final int BYTES_PER_PIXEL = 4; // Decoded images are 32-bit ARGB.
+
+    /**
+     * A cached preview and the memory it is counted for.
+     */
+    private static final class Preview {
+        private final Image image; // The preview, which may still be loading.
+        private long weight; // Pixel memory counted for the image in totalBytes.
+        private boolean cached = true; // Cleared when the preview is dropped, after which its weight no longer counts.
+
+        Preview(Image image, long weight) {
+            this.image = image;
+            this.weight = weight;
+        }
+    }
+
+    private final int boxSize; // Side of the square box previews are scaled into, in pixels.
+    private final long maxBytes; // Pixel memory the cache is trimmed back to.
+    private final LinkedHashMap<String, Preview> previews = new LinkedHashMap<>(16, 0.75f, true); // Previews by URL, least recently used first.
+    private long totalBytes; // Sum of the weights of the cached previews.
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param boxSize  The side of the square box previews are scaled into, in pixels.
+     * @param maxBytes The pixel memory the cache may hold.
+     */
+    public PreviewCache(int boxSize, long maxBytes) {
+        this.boxSize = boxSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the preview of an image, starting to decode it in the background if it is not cached.
+     *
+     * @param url The URL of the image file.
+     * @return The preview, which may still be loading.
+     */
+    public Image get(String url) {
+        Preview preview = previews.get(url);
+        if (preview != null) {
+            return preview.image;
+        }
+        Image image = new Image(url, boxSize, boxSize, true, true, true); // Scaled while decoding, off the FX thread.
+        Preview added = new Preview(image, (long) boxSize * boxSize * BYTES_PER_PIXEL); // The most it can take until it has loaded.
+        previews.put(url, added);
+        totalBytes += added.weight;
+        image.progressProperty().addListener((observable, oldProgress, progress) -> {
+            if (progress.doubleValue() >= 1.0) {
+                settle(added);
+            }
+        });
+        image.errorProperty().addListener((observable, wasError, isError) -> {
+            if (isError) {
+                LoginController.LOG.warn("Cannot decode image " + url + ": " + image.getException());
+            }
+        });
+        settle(added); // In case it finished loading before the listener was added.
+        trim();
+        return image;
+    }
+
+    /**
+     * Replaces the estimated weight of a preview with the memory it really takes, once it has loaded
+     * and if it is still cached.
+     */
+    private void settle(Preview preview) {
+        if (!preview.cached || preview.image.getProgress() < 1.0) {
+            return;
+        }
+        long weight = (long) preview.image.getWidth() * (long) preview.image.getHeight() * BYTES_PER_PIXEL;
+        totalBytes += weight - preview.weight;
+        preview.weight = weight;
+        trim();
+    }
+
+    /**
+     * Drops least recently used previews until the cache fits its limit. The newest is always kept.
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, Preview>> eldest = previews.entrySet().iterator();
+        while (totalBytes > maxBytes && previews.size() > 1) {
+            Preview preview = eldest.next().getValue();
+            totalBytes -= preview.weight; // Exactly what was counted for it, loaded or not.
+            preview.cached = false;
+            eldest.remove();
+        }
+    }
+}
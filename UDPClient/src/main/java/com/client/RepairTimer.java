@@ -0,0 +1,102 @@
+package com.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides when to NACK what the multicast group lost, so that the clients missing the same frame do
+ * not all ask for it at once, over and over.
+ *
+ * The first NACK for a gap waits a random part of the first delay, so that a repair another client
+ * asked for can fill the gap before this client asks too. Every NACK after that waits twice as long
+ * as the one before, up to the longest delay, with random jitter of half that either way. A gap that
+ * closes or makes progress is cleared and starts over with a short delay.
+ */
+public class RepairTimer {
+    /**
+     * When a gap may be NACKed next.
+     */
+    private static final class Gap {
+        private long due; // Time the next NACK may be sent, in milliseconds.
+        private long delay; // Wait before the NACK after next, in milliseconds.
+    }
+
+    private final long firstDelay; // Longest wait before the first NACK for a gap, in milliseconds.
+    private final long maxDelay; // Longest wait between NACKs for a gap, in milliseconds.
+    private final Random random; // Source of the jitter.
+    private final Map<Integer, Gap> gaps = new HashMap<>(); // Open gaps by key: a transfer ID, or 0 for the message stream.
+
+    /**
+     * Creates a timer with no open gaps.
+     *
+     * @param firstDelay The longest wait before the first NACK for a gap, in milliseconds.
+     * @param maxDelay   The longest wait between NACKs for a gap, in milliseconds.
+     * @param random     The source of the jitter.
+     */
+    public RepairTimer(long firstDelay, long maxDelay, Random random) {
+        this.firstDelay = firstDelay;
+        this.maxDelay = maxDelay;
+        this.random = random;
+    }
+
+    /**
+     * Reports whether a gap is due for a NACK, opening it if it is new. If it is due, the next NACK
+     * is scheduled as though this one is sent.
+     *
+     * @param key The transfer ID the gap is in, or 0 for the message stream.
+     * @param now The current time, in milliseconds.
+     * @return true if a NACK for the gap should be sent now.
+     */
+    public boolean due(int key, long now) {
+        Gap gap = gaps.get(key);
+        if (gap == null) {
+            gap = new Gap();
+            gap.due = now + (long) (random.nextDouble() * firstDelay);
+            gap.delay = firstDelay;
+            gaps.put(key, gap);
+            return false;
+        }
+        if (now < gap.due) {
+            return false;
+        }
+        gap.due = now + gap.delay / 2 + (long) (random.nextDouble() * gap.delay); // Between half and one and a half delays.
+        gap.delay = Math.min(maxDelay, gap.delay * 2);
+        return true;
+    }
+
+    /**
+     * Forgets a gap that closed or made progress.
+     *
+     * @param key The transfer ID the gap was in, or 0 for the message stream.
+     */
+    public void clear(int key) {
+        gaps.remove(key);
+    }
+
+    /**
+     * Forgets the gaps nobody has asked about for a while, for example those of transfers that were
+     * dropped or whose chunks stopped arriving.
+     *
+     * @param now  The current time, in milliseconds.
+     * @param idle Milliseconds a gap may stay past its due time before it is forgotten.
+     */
+    public void expire(long now, long idle) {
+        gaps.values().removeIf(gap -> now - gap.due > idle);
+    }
+
+    /**
+     * @param now The current time, in milliseconds.
+     * @return Milliseconds until the next NACK is due, at most the first delay and at least 1, not
+     *         counting gaps that are already due.
+     */
+    public long untilNext(long now) {
+        long next = firstDelay;
+        for (Gap gap : gaps.values()) {
+            if (gap.due > now) { // Gaps already due are looked at again on the next check anyway.
+                next = Math.min(next, gap.due - now);
+            }
+        }
+        return next;
+    }
+}
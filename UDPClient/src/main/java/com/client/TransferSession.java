@@ -0,0 +1,237 @@
+package com.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+/**
+ * State of a single image transfer being received: the target file, the chunk reassembly state and
+ * the time of the last activity, used to expire transfers whose sender went away.
+ *
+ * A transfer written to the partial file of its content can be resumed: which chunks have arrived is
+ * saved next to the file every {@link #CHECKPOINT_CHUNKS} chunks and whenever the transfer stops
+ * early, and the next transfer of the same content picks both up again. The progress file has a
+ * fixed size and each save only rewrites the parts that changed, so saving costs the same however
+ * large the file is.
+ */
+public class TransferSession {
+    private static final int CHECKPOINT_CHUNKS = 256; // New chunks between saves of the progress.
+
+    private final String userName; // Username of the client sending the image.
+    private final String fileName; // Name of the image file.
+    private final int transferId; // ID carried by every chunk of this transfer.
+    private final long fileSize; // Size of the file, as announced by the sender.
+    private final byte[] hash; // SHA-256 of the file's content, as announced by the sender.
+    private byte[] original; // SHA-256 of the full-size image if this file is its preview, otherwise null.
+    private volatile boolean skipped; // Set if the content was already here, so no chunks will come.
+    private File file; // File the image is written to.
+    private RandomAccessFile outToFile; // File the chunks are written into at their offsets.
+    private ChunkReceiver receiver; // Writes chunks and tracks which have arrived.
+    private File progressFile; // Where the chunks received are saved for resuming, or null if the transfer cannot resume.
+    private RandomAccessFile progressOut; // The progress file, kept open while the transfer runs.
+    private int sinceCheckpoint; // New chunks since the progress was last saved.
+    private volatile long lastActivity = System.currentTimeMillis(); // Time of the last chunk, in milliseconds.
+
+    /**
+     * Creates a session from the announced file details.
+     *
+     * @param userName   The username of the client sending the image.
+     * @param fileName   The name of the image file.
+     * @param transferId The ID carried by every chunk of this transfer.
+     * @param fileSize   The size of the file, as announced by the sender.
+     * @param hash       The SHA-256 of the file's content, as announced by the sender.
+     */
+    public TransferSession(String userName, String fileName, int transferId, long fileSize, byte[] hash) {
+        this.userName = userName;
+        this.fileName = fileName;
+        this.transferId = transferId;
+        this.fileSize = fileSize;
+        this.hash = hash;
+    }
+
+    /**
+     * Opens the target file and sets it to the announced size, so every chunk can be written at its
+     * offset as soon as it arrives. Chunks can only be accepted once this has been called.
+     *
+     * @param file The file the image is written to.
+     * @throws IOException If the file cannot be created or sized.
+     */
+    public void open(File file) throws IOException {
+        open(file, null);
+    }
+
+    /**
+     * Opens the target file like {@link #open(File)}, resuming an interrupted transfer into it if its
+     * progress was saved.
+     *
+     * @param file         The file the image is written to.
+     * @param progressFile The file the chunks received are saved to, or null if the transfer cannot resume.
+     * @throws IOException If the file cannot be created or sized.
+     */
+    public void open(File file, File progressFile) throws IOException {
+        this.file = file;
+        this.progressFile = progressFile;
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        byte[] progress = null;
+        try {
+            if (progressFile != null && progressFile.isFile() && output.length() == fileSize) {
+                progress = Files.readAllBytes(progressFile.toPath());
+            }
+            output.setLength(fileSize); // Exact final length; chunks kept from an interrupted transfer stay in place.
+        } catch (IOException e) {
+            output.close();
+            throw e;
+        }
+        this.outToFile = output;
+        this.receiver = new ChunkReceiver(output.getChannel(), transferId, fileSize, progress);
+        if (progressFile != null) {
+            try {
+                progressOut = new RandomAccessFile(progressFile, "rw");
+                if (progress == null) {
+                    progressOut.setLength(0); // A record of another file's chunks, if anything.
+                }
+                progressOut.setLength(receiver.progressLength());
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Counts a newly written chunk and saves the progress every {@link #CHECKPOINT_CHUNKS} of them,
+     * so that not even a crash loses more than that.
+     *
+     * @throws IOException If the progress cannot be saved.
+     */
+    public void checkpoint() throws IOException {
+        if (++sinceCheckpoint >= CHECKPOINT_CHUNKS) {
+            saveProgress();
+        }
+    }
+
+    /**
+     * Saves which chunks have arrived since the last save, if the transfer can resume.
+     *
+     * @throws IOException If the progress cannot be written.
+     */
+    public void saveProgress() throws IOException {
+        if (progressOut == null) {
+            return;
+        }
+        sinceCheckpoint = 0;
+        receiver.saveProgress(progressOut.getChannel());
+    }
+
+    /**
+     * Stops an unfinished transfer: keeps what arrived for a later transfer of the same content if
+     * the transfer can resume, otherwise deletes the file.
+     */
+    public void suspend() {
+        try {
+            saveProgress();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        close();
+        if (progressFile == null && file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Closes the target file and the progress file. Safe to call more than once.
+     */
+    public void close() {
+        for (RandomAccessFile open : new RandomAccessFile[] {outToFile, progressOut}) {
+            if (open != null) {
+                try {
+                    open.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        progressOut = null; // Nothing more to save.
+    }
+
+    /**
+     * Records activity on the session, postponing its expiry.
+     */
+    public void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * @return Milliseconds since the last chunk was received.
+     */
+    public long idleTime() {
+        return System.currentTimeMillis() - lastActivity;
+    }
+
+    /**
+     * @return true once every chunk has been written, or none were needed.
+     */
+    public boolean isComplete() {
+        return skipped || receiver != null && receiver.isComplete();
+    }
+
+    /**
+     * Marks the transfer as finished without any chunks, because the content was already here.
+     */
+    public void skip() {
+        skipped = true;
+        touch();
+    }
+
+    /**
+     * @return true if the transfer was finished without any chunks.
+     */
+    public boolean isSkipped() {
+        return skipped;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    public byte[] getOriginal() {
+        return original;
+    }
+
+    public void setOriginal(byte[] original) {
+        this.original = original;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public ChunkReceiver getReceiver() {
+        return receiver;
+    }
+
+    /**
+     * @return true if the transfer writes to the partial file of its content and can resume.
+     */
+    public boolean isResumable() {
+        return progressFile != null;
+    }
+}
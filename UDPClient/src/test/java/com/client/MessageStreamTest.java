@@ -0,0 +1,87 @@
+package com.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests duplicate detection on the multicast message stream and the ranges it NACKs.
+ */
+class MessageStreamTest {
+    @Test
+    void joinsMidStreamAndDropsDuplicates() {
+        MessageStream stream = new MessageStream();
+        assertTrue(stream.accept(100));
+        assertFalse(stream.accept(100));
+        assertFalse(stream.accept(99)); // Before joining; not asked for either.
+        assertTrue(stream.accept(101));
+        assertFalse(stream.hasGap());
+        assertEquals(0, stream.gapAge());
+    }
+
+    @Test
+    void nacksTheFirstMissingMessageAndTheMissingOnesAfterIt() {
+        MessageStream stream = new MessageStream();
+        stream.accept(100);
+        stream.accept(103);
+        stream.accept(105);
+        assertTrue(stream.hasGap());
+
+        ByteBuffer nack = nack(stream);
+        assertEquals(101, FrameCodec.sequence(nack, 0));
+        assertEquals(0b101, FrameCodec.ackBitmap(nack, 0)); // 102 and 104 missing, 103 arrived; 105 is the highest.
+    }
+
+    @Test
+    void movesTheRangeAsGapsFill() {
+        MessageStream stream = new MessageStream();
+        stream.accept(100);
+        stream.accept(103);
+        stream.accept(105);
+        assertTrue(stream.accept(101)); // A repair.
+
+        ByteBuffer nack = nack(stream);
+        assertEquals(102, FrameCodec.sequence(nack, 0));
+        assertEquals(0b10, FrameCodec.ackBitmap(nack, 0));
+
+        assertTrue(stream.accept(104));
+        assertTrue(stream.accept(102));
+        assertFalse(stream.hasGap());
+        assertFalse(stream.accept(103));
+        assertTrue(stream.accept(106));
+    }
+
+    @Test
+    void coversAtMost64MessagesAfterTheFirstMissing() {
+        MessageStream stream = new MessageStream();
+        stream.accept(1);
+        stream.accept(200);
+
+        ByteBuffer nack = nack(stream);
+        assertEquals(2, FrameCodec.sequence(nack, 0));
+        assertEquals(-1L, FrameCodec.ackBitmap(nack, 0)); // 3 to 66, all missing.
+    }
+
+    @Test
+    void skipsGapsTheServerCannotRepair() {
+        MessageStream stream = new MessageStream();
+        stream.accept(10);
+        stream.accept(20);
+        stream.skipGaps();
+        assertFalse(stream.hasGap());
+        assertFalse(stream.accept(15));
+        assertTrue(stream.accept(21));
+    }
+
+    private static ByteBuffer nack(MessageStream stream) {
+        ByteBuffer out = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+        stream.nack(out);
+        assertEquals(FrameCodec.NACK, FrameCodec.type(out, 0));
+        assertEquals(0, FrameCodec.transferId(out, 0)); // The message stream, not a transfer.
+        return out;
+    }
+}
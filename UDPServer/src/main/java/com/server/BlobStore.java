@@ -0,0 +1,210 @@
+package com.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed image store. Every image is kept once, in a file named after the SHA-256 of its
+ * content, so the same image posted many times takes the space of one, and two different images with
+ * the same name never overwrite each other.
+ *
+ * Uploads are written to a temporary file in the same directory and only enter the store once their
+ * content has been checked against the hash they were announced with. An upload is written to the
+ * partial file of its content, named after the hash, so that when it is interrupted the next upload of
+ * the same content resumes it; partials nobody resumed are deleted after {@link #PARTIAL_LIFETIME}.
+ */
+public class BlobStore {
+    private static final String PREVIEW_SUFFIX = ".preview.jpg"; // Appended to a blob's name to name its preview.
+    private static final String PART_SUFFIX = ".part"; // Appended to a blob's name to name its partial upload.
+    private static final String PROGRESS_SUFFIX = ".chunks"; // Appended to a partial's name to name the record of its chunks.
+    private static final long PARTIAL_LIFETIME = TimeUnit.DAYS.toMillis(1); // How long an interrupted upload can be resumed.
+
+    private final Path directory; // Where blobs and uploads in progress are kept.
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet(); // Hashes whose partial an upload is writing.
+
+    /**
+     * Opens a store, creating its directory if needed.
+     *
+     * @param directory The directory holding the blobs.
+     * @throws IOException If the directory cannot be created.
+     */
+    public BlobStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        deleteStalePartials(true);
+    }
+
+    /**
+     * Deletes the partial uploads nobody resumed within {@link #PARTIAL_LIFETIME}. Called
+     * periodically, since the server may run for much longer than that.
+     *
+     * @throws IOException If the directory cannot be listed.
+     */
+    public void sweepPartials() throws IOException {
+        deleteStalePartials(false);
+    }
+
+    /**
+     * Deletes partial uploads older than {@link #PARTIAL_LIFETIME}, skipping those an upload holds.
+     * At startup, also deletes the uploads a previous run left in {@link #newUpload} files, which
+     * cannot be resumed; while running, those belong to uploads in progress.
+     *
+     * @param startup Whether no upload is running yet.
+     * @throws IOException If the directory cannot be listed.
+     */
+    private void deleteStalePartials(boolean startup) throws IOException {
+        FileTime expiry = FileTime.fromMillis(System.currentTimeMillis() - PARTIAL_LIFETIME);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith("upload-")) {
+                    if (startup) {
+                        Files.deleteIfExists(file);
+                    }
+                } else if (name.endsWith(PART_SUFFIX) || name.endsWith(PART_SUFFIX + PROGRESS_SUFFIX)) {
+                    String hash = name.substring(0, name.indexOf(PART_SUFFIX));
+                    if (claimed.add(hash)) { // Held while deleting, so no upload opens it meanwhile.
+                        try {
+                            if (Files.getLastModifiedTime(file).compareTo(expiry) < 0) {
+                                Files.deleteIfExists(file);
+                            }
+                        } finally {
+                            claimed.remove(hash);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if a blob with this hash is stored.
+     */
+    public boolean contains(byte[] hash) {
+        return Files.isRegularFile(pathFor(hash));
+    }
+
+    /**
+     * @return The file holding the blob with this hash, which may not exist yet.
+     */
+    public File fileFor(byte[] hash) {
+        return pathFor(hash).toFile();
+    }
+
+    /**
+     * Creates an empty file for an upload to be written into before it is committed.
+     *
+     * @return The new temporary file.
+     * @throws IOException If the file cannot be created.
+     */
+    public File newUpload() throws IOException {
+        return Files.createTempFile(directory, "upload-", PART_SUFFIX).toFile();
+    }
+
+    /**
+     * Claims the partial file of an upload of this content, which keeps what arrived of an
+     * interrupted upload until the content is uploaded again. The claim lasts until {@link #release}.
+     *
+     * @param hash The hash the upload was announced with.
+     * @return The partial file, which may not exist yet, or null if another upload of the same content holds it.
+     */
+    public File claimPartial(byte[] hash) {
+        String name = ContentHash.toHex(hash);
+        if (!claimed.add(name)) {
+            return null;
+        }
+        return directory.resolve(name + PART_SUFFIX).toFile();
+    }
+
+    /**
+     * Releases the partial file claimed for this content.
+     *
+     * @param hash The hash the upload was announced with.
+     */
+    public void release(byte[] hash) {
+        claimed.remove(ContentHash.toHex(hash));
+    }
+
+    /**
+     * @return The file recording which chunks of a partial upload have arrived.
+     */
+    public File progressFor(File partial) {
+        return new File(partial.getPath() + PROGRESS_SUFFIX);
+    }
+
+    /**
+     * Moves a finished upload into the store under its hash, after checking that its content matches.
+     * If the blob is already stored, the upload is simply discarded. The upload file and the record of
+     * its chunks are gone afterwards either way.
+     *
+     * @param upload The finished upload.
+     * @param hash   The hash the upload was announced with.
+     * @return true if the blob is now stored, false if the content did not match the hash.
+     * @throws IOException If the upload cannot be read or moved.
+     */
+    public boolean commit(File upload, byte[] hash) throws IOException {
+        byte[] actual;
+        try (FileChannel file = FileChannel.open(upload.toPath(), StandardOpenOption.READ)) {
+            actual = ContentHash.of(file);
+        }
+        Files.deleteIfExists(progressFor(upload).toPath());
+        if (!Arrays.equals(actual, hash)) {
+            Files.deleteIfExists(upload.toPath());
+            return false;
+        }
+        Path target = pathFor(hash);
+        try {
+            Files.move(upload.toPath(), target, StandardCopyOption.ATOMIC_MOVE); // Readers never see a partial blob.
+        } catch (FileAlreadyExistsException e) {
+            Files.deleteIfExists(upload.toPath()); // Someone else stored the same content first.
+        } catch (AtomicMoveNotSupportedException e) {
+            if (!Files.exists(target)) {
+                Files.move(upload.toPath(), target);
+            } else {
+                Files.deleteIfExists(upload.toPath());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the preview of a stored image, rendering it the first time it is asked for.
+     *
+     * @param hash    The hash of the image.
+     * @param maxSize The side of the square box the preview fits in, in pixels.
+     * @return The preview file, or null if the image is too small to need one or cannot be decoded.
+     * @throws IOException If the image cannot be read or the preview cannot be written.
+     */
+    public File previewFor(byte[] hash, int maxSize) throws IOException {
+        Path preview = directory.resolve(ContentHash.toHex(hash) + PREVIEW_SUFFIX);
+        if (Files.isRegularFile(preview)) {
+            return preview.toFile();
+        }
+        File rendering = newUpload();
+        try {
+            if (!Thumbnails.render(fileFor(hash), rendering, maxSize)) {
+                return null;
+            }
+            Files.move(rendering.toPath(), preview, StandardCopyOption.REPLACE_EXISTING); // Two renderings of one image are identical.
+            return preview.toFile();
+        } finally {
+            Files.deleteIfExists(rendering.toPath());
+        }
+    }
+
+    private Path pathFor(byte[] hash) {
+        return directory.resolve(ContentHash.toHex(hash));
+    }
+}
@@ -0,0 +1,52 @@
+package com.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of reusable direct buffers for receiving and sending datagrams.
+ *
+ * Buffers are borrowed with {@link #acquire()} and handed back with {@link #release(ByteBuffer)}.
+ * When the pool is empty a new buffer is allocated; when it is full a released buffer is simply
+ * dropped, so the pool never holds more than its capacity however bursty the traffic gets.
+ */
+public class BufferPool {
+    private final int bufferSize; // Capacity of every buffer handed out.
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers; // Buffers ready to be borrowed.
+
+    /**
+     * Creates an empty pool; buffers are allocated on first use.
+     *
+     * @param bufferSize The capacity of every buffer, in bytes.
+     * @param capacity   The maximum number of idle buffers kept for reuse.
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.freeBuffers = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Borrows a cleared buffer, allocating one if none is idle.
+     *
+     * @return A buffer with position 0 and limit equal to its capacity.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not touch the buffer afterwards.
+     *
+     * @param buffer The buffer obtained from {@link #acquire()}.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize) {
+            freeBuffers.offer(buffer); // Dropped if the pool is already full.
+        }
+    }
+}
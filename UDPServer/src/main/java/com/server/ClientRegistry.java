@@ -0,0 +1,191 @@
+package com.server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The clients currently logged in, keyed by socket address and indexed by username.
+ *
+ * Every client holds a lease that is renewed by its heartbeats and by anything else it sends. A
+ * client whose lease runs out is evicted, which also frees its username for someone else. Clients
+ * are spread over a fixed number of shards by a hash of their address, and each shard's clients can
+ * be listed on their own.
+ */
+public class ClientRegistry {
+    /**
+     * Outcome of a login.
+     */
+    public enum Registration {
+        NEW, // The client was not logged in under that username before.
+        RENEWED, // The client logged in again with the username it holds, which only renewed its lease.
+        TAKEN; // Another client holds the username.
+
+        /**
+         * @return true if the username was granted.
+         */
+        public boolean granted() {
+            return this != TAKEN;
+        }
+    }
+
+    /**
+     * A logged-in client.
+     */
+    public static final class Client {
+        private final InetSocketAddress address; // Address the client sends from and receives on.
+        private final String userName; // Username the client logged in with.
+        private final int shard; // Shard the client is assigned to.
+        private final RttEstimator rtt = new RttEstimator(); // Round-trip estimate, kept across transfers to this client.
+        private volatile long lastSeen = System.currentTimeMillis(); // When the lease was last renewed.
+
+        Client(InetSocketAddress address, String userName, int shard) {
+            this.address = address;
+            this.userName = userName;
+            this.shard = shard;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public String getUserName() {
+            return userName;
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        public RttEstimator getRtt() {
+            return rtt;
+        }
+
+        /**
+         * @return Milliseconds since the lease was last renewed.
+         */
+        public long idleTime() {
+            return System.currentTimeMillis() - lastSeen;
+        }
+    }
+
+    private final Map<InetSocketAddress, Client> byAddress = new ConcurrentHashMap<>(); // Registered clients.
+    private final Map<String, Client> byUserName = new ConcurrentHashMap<>(); // The same clients, by username.
+    private final List<Map<InetSocketAddress, Client>> byShard = new ArrayList<>(); // The same clients, by shard.
+
+    /**
+     * Creates an empty registry with a single shard.
+     */
+    public ClientRegistry() {
+        this(1);
+    }
+
+    /**
+     * Creates an empty registry.
+     *
+     * @param shards The number of shards clients are spread over.
+     */
+    public ClientRegistry(int shards) {
+        for (int i = 0; i < shards; i++) {
+            byShard.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * @param address The address of a client.
+     * @return The shard the client at that address is assigned to.
+     */
+    public int shardOf(InetSocketAddress address) {
+        return Math.floorMod(address.hashCode(), byShard.size());
+    }
+
+    /**
+     * Registers a client under a username. Logging in again from the same address with the same
+     * username just renews the lease; logging in from an address that already has another username
+     * replaces it.
+     *
+     * @param userName The requested username.
+     * @param address  The address of the client.
+     * @return Whether the username was granted, and if so whether the client is new or renewed its lease.
+     */
+    public Registration register(String userName, InetSocketAddress address) {
+        Client client = new Client(address, userName, shardOf(address));
+        Client holder = byUserName.putIfAbsent(userName, client);
+        if (holder != null) {
+            if (!holder.address.equals(address)) {
+                return Registration.TAKEN; // Taken by someone else.
+            }
+            holder.lastSeen = System.currentTimeMillis();
+            return Registration.RENEWED;
+        }
+        Client previous = byAddress.put(address, client);
+        byShard.get(client.shard).put(address, client);
+        if (previous != null) {
+            byUserName.remove(previous.userName, previous); // The address logged in again under a new name.
+        }
+        return Registration.NEW;
+    }
+
+    /**
+     * Renews the lease of the client at an address.
+     *
+     * @param address The address a packet arrived from.
+     * @return true if the address belongs to a registered client.
+     */
+    public boolean renew(InetSocketAddress address) {
+        Client client = byAddress.get(address);
+        if (client == null) {
+            return false;
+        }
+        client.lastSeen = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Removes every client whose lease has not been renewed within the timeout.
+     *
+     * @param leaseTimeout Milliseconds a lease lasts without renewal.
+     * @return The clients that were evicted.
+     */
+    public List<Client> evictExpired(long leaseTimeout) {
+        List<Client> evicted = new ArrayList<>();
+        for (Client client : byAddress.values()) {
+            if (client.idleTime() > leaseTimeout && byAddress.remove(client.address, client)) {
+                byUserName.remove(client.userName, client); // Free the username.
+                byShard.get(client.shard).remove(client.address, client);
+                evicted.add(client);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return A live view of the registered clients.
+     */
+    public Collection<Client> clients() {
+        return byAddress.values();
+    }
+
+    /**
+     * @param shard The index of a shard.
+     * @return A live view of the clients assigned to that shard.
+     */
+    public Collection<Client> clients(int shard) {
+        return byShard.get(shard).values();
+    }
+
+    public Client get(InetSocketAddress address) {
+        return byAddress.get(address);
+    }
+
+    public Client get(String userName) {
+        return byUserName.get(userName);
+    }
+
+    public int size() {
+        return byAddress.size();
+    }
+}
@@ -0,0 +1,58 @@
+package com.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 of file content, the name images go by in the blob store and on the wire.
+ */
+public final class ContentHash {
+    public static final int SIZE = 32; // Bytes in a SHA-256 digest.
+    private static final int READ_BUFFER = 64 * 1024; // Bytes hashed per read.
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentHash() {
+    }
+
+    /**
+     * Hashes a whole file with positional reads, leaving the channel's position alone.
+     *
+     * @param file The channel to read.
+     * @return The SHA-256 digest of the file's content.
+     * @throws IOException If the file cannot be read.
+     */
+    public static byte[] of(FileChannel file) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+        long position = 0;
+        int read;
+        while ((read = file.read(buffer.clear(), position)) > 0) {
+            digest.update(buffer.array(), 0, read);
+            position += read;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @return The hash as lowercase hexadecimal.
+     */
+    public static String toHex(byte[] hash) {
+        char[] text = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            text[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            text[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(text);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required on every Java platform", e);
+        }
+    }
+}
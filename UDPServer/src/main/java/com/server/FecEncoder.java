@@ -0,0 +1,119 @@
+package com.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Sending side of forward error correction on a chunk stream. After every group of consecutive
+ * chunks, a PARITY frame carrying the XOR of their payloads is sent, from which the receiver can
+ * rebuild any single chunk of the group that was lost, without waiting a round trip for it to be
+ * sent again.
+ *
+ * The group size follows the share of chunks lost, as the sender sees it through the chunks it has
+ * to resend and the chunks the receiver reports having rebuilt. On a clean link no parity is sent at
+ * all; the lossier the link, the smaller the groups and the more bandwidth goes to parity, up to a
+ * fifth of it.
+ */
+public class FecEncoder {
+    private static final double LOSS_GAIN = 1.0 / 64; // Weight of each chunk in the loss estimate.
+    private static final double MIN_LOSS = 1.0 / 256; // Loss rate below which no parity is sent.
+    private static final double GROUP_LOSSES = 0.25; // Chunks expected lost per group; XOR parity rebuilds one.
+    private static final int MIN_GROUP = 4; // Smallest group.
+    private static final int MAX_GROUP = 32; // Largest group.
+
+    private final int transferId; // Transfer the parity belongs to.
+    private final byte[] parity = new byte[ChunkSender.CHUNK_SIZE]; // XOR of the payloads of the open group.
+    private double lossRate; // Smoothed share of chunks lost.
+    private int groupStart; // Sequence number of the first chunk of the open group.
+    private int groupSize; // Chunks the open group is to hold.
+    private int groupLength; // Chunks added to the open group so far; 0 if no group is open.
+    private int parityLength; // Longest payload in the open group.
+
+    /**
+     * Creates an encoder for one transfer.
+     *
+     * @param transferId The ID of the transfer.
+     * @param lossRate   The share of chunks expected to be lost until observations say otherwise.
+     */
+    public FecEncoder(int transferId, double lossRate) {
+        this.transferId = transferId;
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Records chunks that arrived.
+     *
+     * @param chunks The number of chunks newly acknowledged.
+     */
+    public void onDelivered(int chunks) {
+        lossRate *= Math.pow(1 - LOSS_GAIN, chunks);
+    }
+
+    /**
+     * Records a chunk that was lost, whether it was sent again or rebuilt from parity.
+     */
+    public void onLoss() {
+        lossRate += LOSS_GAIN * (1 - lossRate);
+    }
+
+    /**
+     * Adds a chunk sent for the first time to the open group, opening one if needed. Chunks must be
+     * added in sequence order.
+     *
+     * @param chunk The buffer holding the CHUNK frame.
+     * @param at    The position of the frame in the buffer.
+     * @return true if the group is complete and its parity should be sent.
+     */
+    public boolean add(ByteBuffer chunk, int at) {
+        if (groupLength == 0) {
+            groupSize = groupSize();
+            if (groupSize == 0) {
+                return false; // No parity at this loss rate.
+            }
+            groupStart = FrameCodec.sequence(chunk, at);
+            parityLength = 0;
+            Arrays.fill(parity, (byte) 0);
+        }
+        int length = FrameCodec.payloadLength(chunk, at);
+        int payload = FrameCodec.payloadOffset(at);
+        for (int i = 0; i < length; i++) {
+            parity[i] ^= chunk.get(payload + i);
+        }
+        parityLength = Math.max(parityLength, length);
+        groupLength++;
+        return groupLength == groupSize || (FrameCodec.flags(chunk, at) & FrameCodec.FLAG_LAST) != 0;
+    }
+
+    /**
+     * Ends the open group early, because the next chunk in sequence is not sent: groups only hold
+     * consecutive chunks.
+     *
+     * @return true if the group holds chunks and its parity should be sent.
+     */
+    public boolean endGroup() {
+        return groupLength > 0;
+    }
+
+    /**
+     * Writes the PARITY frame of the group just completed and closes the group. The frame starts at
+     * the beginning of the buffer, which is left ready to send.
+     *
+     * @param out The buffer the frame is written to.
+     */
+    public void writeParity(ByteBuffer out) {
+        out.clear();
+        FrameCodec.encodeParity(out, transferId, groupStart, groupLength, parity, parityLength);
+        out.flip();
+        groupLength = 0;
+    }
+
+    /**
+     * @return The number of chunks per parity for the current loss estimate, or 0 for none.
+     */
+    private int groupSize() {
+        if (lossRate < MIN_LOSS) {
+            return 0;
+        }
+        return (int) Math.max(MIN_GROUP, Math.min(MAX_GROUP, GROUP_LOSSES / lossRate));
+    }
+}
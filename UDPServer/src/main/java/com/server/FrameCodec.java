@@ -0,0 +1,324 @@
+package com.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes the binary wire protocol shared by the server and the clients.
+ *
+ * Every frame starts with a fixed 16-byte header:
+ * <pre>
+ *  0  version        (1 byte)
+ *  1  type           (1 byte)
+ *  2  flags          (2 bytes)
+ *  4  payload length (2 bytes)
+ *  6  group size     (2 bytes, PARITY only; reserved otherwise)
+ *  8  sequence       (4 bytes)
+ * 12  transfer ID    (4 bytes)
+ * </pre>
+ * followed by the payload. Frames are read in place with absolute gets, so decoding never allocates
+ * and never copies; only code that actually needs a username or message text turns it into a String.
+ */
+public final class FrameCodec {
+    public static final int VERSION = 7; // Protocol version written into every frame.
+    public static final int HEADER_SIZE = 16; // Size of the fixed frame header.
+    public static final int MAX_DATAGRAM = 1024; // Largest datagram either side sends.
+    public static final int MAX_PAYLOAD = MAX_DATAGRAM - HEADER_SIZE; // Largest payload that fits in one datagram.
+
+    public static final int TEXT = 1; // Chat message: user name + text; sequence number in the room's message stream when multicast, otherwise 0.
+    public static final int CHECK_USERNAME = 2; // Login request: user name.
+    public static final int USERNAME_RESULT = 3; // Login reply: FLAG_AVAILABLE set if the name was accepted.
+    public static final int FILE_META = 4; // Image announcement: 64-bit file size + SHA-256 (+ SHA-256 of the original if FLAG_PREVIEW) + user name + file name, transfer ID in the header.
+    public static final int CHUNK = 5; // Image data: sequence number and transfer ID in the header.
+    public static final int ACK = 6; // Selective ack: cumulative sequence number in the header, 64-bit SACK bitmap as payload.
+    public static final int HEARTBEAT = 7; // Client keep-alive renewing its registration; no payload.
+    public static final int FILE_STATUS = 8; // Reply to FILE_META: FLAG_HAVE set if the content is already there, otherwise the chunks kept from an interrupted transfer, as an ACK reports them; transfer ID in the header.
+    public static final int FETCH = 9; // Request for the original of a preview: SHA-256 of the original + user name of its sender + file name.
+    public static final int NACK = 10; // Multicast repair request: first missing sequence number in the header, 64-bit bitmap of further missing ones as payload; transfer ID 0 means the message stream.
+    public static final int PARITY = 11; // Forward error correction: XOR of the zero-padded payloads of a group of chunks; first sequence number of the group and group size in the header.
+    public static final int RELOGIN = 12; // Reply to a packet from an address that is not registered, for example after its lease expired: check the user name again; no payload.
+
+    public static final int FLAG_LAST = 1; // CHUNK: this is the last chunk of the file.
+    public static final int FLAG_AVAILABLE = 1; // USERNAME_RESULT: the user name was accepted.
+    public static final int FLAG_HAVE = 1; // FILE_STATUS: the content is already known, so no chunks are needed.
+    public static final int FLAG_PREVIEW = 1; // FILE_META: the file is a downscaled preview; the original can be fetched by its hash.
+    public static final int FLAG_RECOVERED = 1; // ACK: a chunk was rebuilt from parity since the previous ack.
+
+    private static final int ACK_PAYLOAD = 8; // Size of the SACK bitmap.
+    private static final int FILE_SIZE = 8; // Size of the file size field leading a FILE_META payload.
+    private static final int FILE_HASH = 32; // Size of the SHA-256 following the file size.
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Checks that a complete frame of a known version starts at the given position.
+     *
+     * @param buffer The buffer holding the datagram, with its limit at the end of the datagram.
+     * @param at     The position of the frame header.
+     * @return true if the header and its whole payload fit in the buffer.
+     */
+    public static boolean isValid(ByteBuffer buffer, int at) {
+        return at + HEADER_SIZE <= buffer.limit()
+                && (buffer.get(at) & 0xff) == VERSION
+                && at + HEADER_SIZE + payloadLength(buffer, at) <= buffer.limit();
+    }
+
+    public static int type(ByteBuffer buffer, int at) {
+        return buffer.get(at + 1) & 0xff;
+    }
+
+    public static int flags(ByteBuffer buffer, int at) {
+        return buffer.getShort(at + 2) & 0xffff;
+    }
+
+    public static int payloadLength(ByteBuffer buffer, int at) {
+        return buffer.getShort(at + 4) & 0xffff;
+    }
+
+    public static int sequence(ByteBuffer buffer, int at) {
+        return buffer.getInt(at + 8);
+    }
+
+    public static int transferId(ByteBuffer buffer, int at) {
+        return buffer.getInt(at + 12);
+    }
+
+    /**
+     * Reads the number of chunks a PARITY frame covers, starting at its sequence number.
+     */
+    public static int groupSize(ByteBuffer buffer, int at) {
+        return buffer.getShort(at + 6) & 0xffff;
+    }
+
+    /**
+     * Overwrites the sequence number of a frame that has already been written.
+     */
+    public static void setSequence(ByteBuffer buffer, int at, int sequence) {
+        buffer.putInt(at + 8, sequence);
+    }
+
+    public static int payloadOffset(int at) {
+        return at + HEADER_SIZE;
+    }
+
+    /**
+     * @return The position right after the frame starting at {@code at}.
+     */
+    public static int next(ByteBuffer buffer, int at) {
+        return at + HEADER_SIZE + payloadLength(buffer, at);
+    }
+
+    /**
+     * Reads the bitmap of an ACK, FILE_STATUS or NACK frame. In an ACK or FILE_STATUS, bit i reports
+     * whether chunk {@code sequence + 2 + i} has been received; in a NACK, whether {@code sequence + 1 + i} is missing.
+     */
+    public static long ackBitmap(ByteBuffer buffer, int at) {
+        return payloadLength(buffer, at) >= ACK_PAYLOAD ? buffer.getLong(payloadOffset(at)) : 0L;
+    }
+
+    /**
+     * Reads the size of the announced file from a FILE_META frame.
+     */
+    public static long fileSize(ByteBuffer buffer, int at) {
+        return buffer.getLong(payloadOffset(at));
+    }
+
+    /**
+     * Reads the SHA-256 of the announced file's content from a FILE_META frame.
+     */
+    public static byte[] fileHash(ByteBuffer buffer, int at) {
+        return readHash(buffer, payloadOffset(at) + FILE_SIZE);
+    }
+
+    /**
+     * Reads the SHA-256 of the original image from a FILE_META frame announcing a preview, or the
+     * requested image from a FETCH frame.
+     *
+     * @return The hash, or null if the FILE_META frame does not announce a preview.
+     */
+    public static byte[] originalHash(ByteBuffer buffer, int at) {
+        if (type(buffer, at) == FETCH) {
+            return readHash(buffer, payloadOffset(at));
+        }
+        return (flags(buffer, at) & FLAG_PREVIEW) != 0 ? readHash(buffer, payloadOffset(at) + FILE_SIZE + FILE_HASH) : null;
+    }
+
+    /**
+     * Reads the user name of a TEXT, FILE_META or FETCH payload, or the whole CHECK_USERNAME payload.
+     */
+    public static String userName(ByteBuffer buffer, int at) {
+        if (type(buffer, at) == CHECK_USERNAME) {
+            return readString(buffer, payloadOffset(at), payloadLength(buffer, at));
+        }
+        int nameOffset = namedOffset(buffer, at);
+        int nameLength = buffer.get(nameOffset) & 0xff;
+        return readString(buffer, nameOffset + 1, nameLength);
+    }
+
+    /**
+     * Reads what follows the user name in a TEXT, FILE_META or FETCH payload: the message or the file name.
+     */
+    public static String body(ByteBuffer buffer, int at) {
+        int nameOffset = namedOffset(buffer, at);
+        int nameLength = buffer.get(nameOffset) & 0xff;
+        int bodyOffset = nameOffset + 1 + nameLength;
+        return readString(buffer, bodyOffset, next(buffer, at) - bodyOffset);
+    }
+
+    /**
+     * Writes the header of a frame at the buffer's position and moves the position past it.
+     */
+    public static void writeHeader(ByteBuffer out, int type, int flags, int payloadLength, int sequence, int transferId) {
+        out.put((byte) VERSION);
+        out.put((byte) type);
+        out.putShort((short) flags);
+        out.putShort((short) payloadLength);
+        out.putShort((short) 0);
+        out.putInt(sequence);
+        out.putInt(transferId);
+    }
+
+    public static void encodeCheckUsername(ByteBuffer out, String userName) {
+        byte[] name = truncate(userName.getBytes(StandardCharsets.UTF_8), MAX_PAYLOAD);
+        writeHeader(out, CHECK_USERNAME, 0, name.length, 0, 0);
+        out.put(name);
+    }
+
+    public static void encodeUsernameResult(ByteBuffer out, boolean available) {
+        writeHeader(out, USERNAME_RESULT, available ? FLAG_AVAILABLE : 0, 0, 0, 0);
+    }
+
+    public static void encodeHeartbeat(ByteBuffer out) {
+        writeHeader(out, HEARTBEAT, 0, 0, 0, 0);
+    }
+
+    public static void encodeRelogin(ByteBuffer out) {
+        writeHeader(out, RELOGIN, 0, 0, 0, 0);
+    }
+
+    public static void encodeText(ByteBuffer out, String userName, String text) {
+        encodeNamed(out, TEXT, 0, 0, 0, userName, text);
+    }
+
+    /**
+     * Writes a FILE_META frame. If {@code original} is not null, the file is announced as a preview
+     * of the image with that hash.
+     */
+    public static void encodeFileMeta(ByteBuffer out, int transferId, String userName, String fileName, long fileSize, byte[] hash, byte[] original) {
+        int start = out.position();
+        encodeNamed(out, FILE_META, original != null ? FLAG_PREVIEW : 0, transferId,
+                FILE_SIZE + FILE_HASH + (original != null ? FILE_HASH : 0), userName, fileName);
+        out.putLong(payloadOffset(start), fileSize);
+        writeHash(out, payloadOffset(start) + FILE_SIZE, hash);
+        if (original != null) {
+            writeHash(out, payloadOffset(start) + FILE_SIZE + FILE_HASH, original);
+        }
+    }
+
+    public static void encodeFetch(ByteBuffer out, byte[] original, String userName, String fileName) {
+        int start = out.position();
+        encodeNamed(out, FETCH, 0, 0, FILE_HASH, userName, fileName);
+        writeHash(out, payloadOffset(start), original);
+    }
+
+    /**
+     * Writes a FILE_STATUS frame. If the content is needed, {@code cumulative} and {@code bitmap}
+     * describe the chunks already received, exactly as in an ACK, so the sender can skip them.
+     */
+    public static void encodeFileStatus(ByteBuffer out, int transferId, boolean have, int cumulative, long bitmap) {
+        writeHeader(out, FILE_STATUS, have ? FLAG_HAVE : 0, ACK_PAYLOAD, cumulative, transferId);
+        out.putLong(bitmap);
+    }
+
+    /**
+     * Writes a CHUNK frame whose payload is the remaining content of {@code data}.
+     */
+    public static void encodeChunk(ByteBuffer out, int transferId, int sequence, boolean last, ByteBuffer data) {
+        writeHeader(out, CHUNK, last ? FLAG_LAST : 0, data.remaining(), sequence, transferId);
+        out.put(data);
+    }
+
+    public static void encodeAck(ByteBuffer out, int transferId, int cumulative, long bitmap, boolean recovered) {
+        writeHeader(out, ACK, recovered ? FLAG_RECOVERED : 0, ACK_PAYLOAD, cumulative, transferId);
+        out.putLong(bitmap);
+    }
+
+    public static void encodeNack(ByteBuffer out, int transferId, int firstMissing, long bitmap) {
+        writeHeader(out, NACK, 0, ACK_PAYLOAD, firstMissing, transferId);
+        out.putLong(bitmap);
+    }
+
+    /**
+     * Writes a PARITY frame for the group of chunks starting at {@code first}, whose payload is the
+     * first {@code length} bytes of {@code parity}.
+     */
+    public static void encodeParity(ByteBuffer out, int transferId, int first, int groupSize, byte[] parity, int length) {
+        int start = out.position();
+        writeHeader(out, PARITY, 0, length, first, transferId);
+        out.putShort(start + 6, (short) groupSize);
+        out.put(parity, 0, length);
+    }
+
+    /**
+     * Writes a frame whose payload is a length-prefixed user name followed by free text, after
+     * {@code prefix} bytes left for the caller to fill in.
+     */
+    private static void encodeNamed(ByteBuffer out, int type, int flags, int transferId, int prefix, String userName, String body) {
+        byte[] name = truncate(userName.getBytes(StandardCharsets.UTF_8), 255);
+        byte[] text = truncate(body.getBytes(StandardCharsets.UTF_8), MAX_PAYLOAD - prefix - 1 - name.length);
+        writeHeader(out, type, flags, prefix + 1 + name.length + text.length, 0, transferId);
+        out.position(out.position() + prefix);
+        out.put((byte) name.length);
+        out.put(name);
+        out.put(text);
+    }
+
+    /**
+     * @return The position of the length-prefixed user name in a TEXT, FILE_META or FETCH frame.
+     */
+    private static int namedOffset(ByteBuffer buffer, int at) {
+        switch (type(buffer, at)) {
+            case FILE_META:
+                return payloadOffset(at) + FILE_SIZE + FILE_HASH + ((flags(buffer, at) & FLAG_PREVIEW) != 0 ? FILE_HASH : 0);
+            case FETCH:
+                return payloadOffset(at) + FILE_HASH;
+            default:
+                return payloadOffset(at);
+        }
+    }
+
+    private static byte[] readHash(ByteBuffer buffer, int offset) {
+        byte[] hash = new byte[FILE_HASH];
+        for (int i = 0; i < FILE_HASH; i++) {
+            hash[i] = buffer.get(offset + i);
+        }
+        return hash;
+    }
+
+    private static void writeHash(ByteBuffer out, int offset, byte[] hash) {
+        for (int i = 0; i < FILE_HASH; i++) {
+            out.put(offset + i, hash[i]);
+        }
+    }
+
+    private static byte[] truncate(byte[] bytes, int maxLength) {
+        if (bytes.length <= maxLength) {
+            return bytes;
+        }
+        byte[] truncated = new byte[maxLength];
+        System.arraycopy(bytes, 0, truncated, 0, maxLength);
+        return truncated;
+    }
+
+    private static String readString(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
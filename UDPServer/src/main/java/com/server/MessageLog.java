@@ -0,0 +1,498 @@
+package com.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of the chat's TEXT frames on disk, so messages outlive the server and can be
+ * replayed to clients that join later. Every message gets an offset, its position in the log,
+ * counting from 0.
+ *
+ * The log is split into segments of at most {@link #SEGMENT_BYTES}, each a file of records named
+ * after the offset of its first message; only the last one is written to, and once there are more
+ * than {@link #MAX_SEGMENTS} the oldest is dropped, and deleted as soon as no read is still going
+ * through it. A record is the frame's length and CRC32C
+ * followed by the frame. Next to each segment, a memory-mapped index holds the offset and position
+ * of one record every {@link #INDEX_INTERVAL} bytes, so finding a message takes a binary search over
+ * the segments, one over the index and a scan of a few kilobytes.
+ *
+ * Appending only writes the record into the page cache. A background thread forces everything
+ * appended to disk every {@link #COMMIT_INTERVAL} milliseconds, one fsync for all the messages of
+ * that interval, so a crash loses at most the last interval. On opening, the last segment is read
+ * through and cut at the first torn or corrupt record, and its index is rebuilt.
+ */
+public class MessageLog {
+    private static final int SEGMENT_BYTES = 64 * 1024 * 1024; // Size at which a new segment is started, unless told otherwise.
+    private static final int MAX_SEGMENTS = 16; // Segments kept; older messages are deleted.
+    private static final int INDEX_INTERVAL = 4096; // Bytes of records between two index entries.
+    private static final int INDEX_ENTRY = 8; // Offset relative to the segment, then position in the segment.
+    private static final int RECORD_HEADER = 8; // Length of the frame, then its CRC32C.
+    private static final int READ_BLOCK = 64 * 1024; // Bytes read from a segment at once.
+    private static final int COMMIT_INTERVAL = 10; // Milliseconds between forcing appended messages to disk.
+    private static final String LOG_SUFFIX = ".log"; // Suffix of segment files.
+    private static final String INDEX_SUFFIX = ".index"; // Suffix of index files.
+
+    /**
+     * Receives the records of a segment one after another.
+     */
+    private interface RecordVisitor {
+        /**
+         * @param offset   The offset of the message.
+         * @param position The position of its record in the segment.
+         * @param frame    The frame, from its position to its limit, valid only during the call.
+         * @return false to stop reading.
+         */
+        boolean visit(long offset, int position, ByteBuffer frame) throws IOException;
+    }
+
+    /**
+     * One segment: a file of records and its sparse index.
+     */
+    private static final class Segment {
+        private final long base; // Offset of the segment's first message.
+        private final int segmentBytes; // Size the segment is not written past.
+        private final int indexBytes; // Size of a full index for a segment of that size.
+        private final Path logPath; // File holding the records.
+        private final Path indexPath; // File holding the index.
+        private final FileChannel log; // Records, read and written with positional I/O only.
+        private final FileChannel indexChannel; // Channel the index is mapped from.
+        private final MappedByteBuffer index; // Index entries, in offset order.
+        private volatile int entries; // Index entries written.
+        private volatile int size; // Bytes of whole records in the segment.
+        private volatile long next; // Offset the next message appended to the segment gets.
+        private int lastIndexed; // Position of the record of the last index entry.
+        private final AtomicInteger references = new AtomicInteger(1); // The log's own, plus one per read going through the segment; at 0 it is deleted.
+
+        /**
+         * Opens or creates the files of a segment.
+         */
+        Segment(Path directory, long base, int segmentBytes) throws IOException {
+            this.base = base;
+            this.segmentBytes = segmentBytes;
+            this.indexBytes = (segmentBytes / INDEX_INTERVAL + 1) * INDEX_ENTRY;
+            String name = String.format("%020d", base);
+            logPath = directory.resolve(name + LOG_SUFFIX);
+            indexPath = directory.resolve(name + INDEX_SUFFIX);
+            log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                log.close();
+                throw e;
+            }
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexBytes); // Zero-filled past the entries written.
+            next = base;
+        }
+
+        /**
+         * Takes over a segment that is complete, trusting its index. Only the first entry has position
+         * 0, so the entries end at the next one that does; entries lost before reaching the disk only
+         * make the index sparser.
+         *
+         * @param end The offset of the next segment's first message.
+         */
+        void load(long end) throws IOException {
+            int count = indexBytes / INDEX_ENTRY;
+            for (int i = 1; i < count; i++) {
+                if (index.getInt(i * INDEX_ENTRY + 4) == 0) {
+                    count = i;
+                    break;
+                }
+            }
+            entries = log.size() > 0 ? count : 0;
+            size = (int) log.size();
+            next = end;
+        }
+
+        /**
+         * Takes over the segment that was being written to: reads every record, cuts the file at the
+         * first one that is torn or does not match its checksum, and rebuilds the index.
+         */
+        void recover() throws IOException {
+            for (int i = 0; i < indexBytes; i += 8) {
+                index.putLong(i, 0);
+            }
+            entries = 0;
+            int end = scan(0, base, (int) Math.min(log.size(), segmentBytes), true, (offset, position, frame) -> {
+                indexRecord(offset, position);
+                next = offset + 1;
+                return true;
+            });
+            log.truncate(end);
+            size = end;
+        }
+
+        /**
+         * Appends a record. Called by one thread at a time.
+         *
+         * @param record The record, from its position to its limit.
+         * @return The offset of the message.
+         */
+        long append(ByteBuffer record) throws IOException {
+            int position = size;
+            indexRecord(next, position);
+            int end = position;
+            while (record.hasRemaining()) {
+                end += log.write(record, end);
+            }
+            size = end; // Publishes the record to readers.
+            return next++;
+        }
+
+        /**
+         * Adds an index entry for a record if it is the first or the last entry is far enough behind.
+         */
+        private void indexRecord(long offset, int position) {
+            if (entries > 0 && position - lastIndexed < INDEX_INTERVAL) {
+                return;
+            }
+            index.putInt(entries * INDEX_ENTRY, (int) (offset - base));
+            index.putInt(entries * INDEX_ENTRY + 4, position);
+            lastIndexed = position;
+            entries++;
+        }
+
+        /**
+         * Reads the frames from an offset on, up to the end of the segment.
+         *
+         * @param from    The first offset to hand over; it must be in this segment.
+         * @param visitor Receives every frame from that offset on.
+         */
+        void read(long from, RecordVisitor visitor) throws IOException {
+            int end = size;
+            int count = entries;
+            if (count == 0 || from >= next) {
+                return;
+            }
+            int low = 0; // Binary search for the last entry at or before the offset.
+            int high = count - 1;
+            int relative = (int) (from - base);
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (index.getInt(middle * INDEX_ENTRY) <= relative) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            long offset = base + index.getInt(low * INDEX_ENTRY);
+            int position = index.getInt(low * INDEX_ENTRY + 4);
+            scan(position, offset, end, false, (at, ignored, frame) -> at < from || visitor.visit(at, ignored, frame));
+        }
+
+        /**
+         * Reads records one after another, in blocks.
+         *
+         * @param position Where the first record starts.
+         * @param offset   The offset of its message.
+         * @param end      Where reading stops.
+         * @param verify   Whether to check every record against its checksum.
+         * @param visitor  Receives every record read.
+         * @return The position after the last whole, valid record read.
+         */
+        int scan(int position, long offset, int end, boolean verify, RecordVisitor visitor) throws IOException {
+            ByteBuffer block = ByteBuffer.allocate(READ_BLOCK);
+            CRC32C crc = new CRC32C();
+            int filled = position; // Where the next block read starts.
+            block.flip();
+            while (position < end) {
+                if (block.remaining() < RECORD_HEADER + FrameCodec.MAX_DATAGRAM && filled < end) {
+                    block.compact();
+                    block.limit(Math.min(block.capacity(), block.position() + end - filled));
+                    while (block.hasRemaining()) {
+                        int read = log.read(block, filled);
+                        if (read < 0) {
+                            break;
+                        }
+                        filled += read;
+                    }
+                    block.flip();
+                }
+                if (block.remaining() < RECORD_HEADER) {
+                    break; // Torn header.
+                }
+                int length = block.getInt(block.position());
+                if (length <= 0 || length > FrameCodec.MAX_DATAGRAM || block.remaining() < RECORD_HEADER + length) {
+                    break; // Torn or garbled record.
+                }
+                ByteBuffer frame = block.slice(block.position() + RECORD_HEADER, length);
+                if (verify) {
+                    crc.reset();
+                    crc.update(frame.duplicate());
+                    if ((int) crc.getValue() != block.getInt(block.position() + 4)) {
+                        break;
+                    }
+                }
+                if (!visitor.visit(offset, position, frame)) {
+                    break;
+                }
+                block.position(block.position() + RECORD_HEADER + length);
+                position += RECORD_HEADER + length;
+                offset++;
+            }
+            return position;
+        }
+
+        /**
+         * Forces the records appended so far to disk.
+         */
+        void force() throws IOException {
+            log.force(false);
+        }
+
+        void close() throws IOException {
+            try {
+                index.force();
+                indexChannel.close();
+            } finally {
+                log.close();
+            }
+        }
+
+        /**
+         * Holds the segment open for a read.
+         *
+         * @return false if the segment was already dropped and deleted.
+         */
+        boolean retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        /**
+         * Lets go of the segment, deleting it if it was dropped and nothing else holds it.
+         */
+        void release() throws IOException {
+            if (references.decrementAndGet() == 0) {
+                delete();
+            }
+        }
+
+        private void delete() throws IOException {
+            close();
+            Files.deleteIfExists(logPath);
+            Files.deleteIfExists(indexPath);
+        }
+    }
+
+    private final Path directory; // Where the segments are kept.
+    private final int segmentBytes; // Size at which a new segment is started.
+    private final LogSink logSink; // Where commit errors are reported.
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + FrameCodec.MAX_DATAGRAM); // Reused for every append; guarded by this.
+    private final CRC32C crc = new CRC32C(); // Reused for every append; guarded by this.
+    private final ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor(); // Forces appended messages to disk.
+    private volatile Segment[] segments; // Segments in offset order; the last one is written to.
+    private volatile boolean dirty; // Messages were appended since the last commit.
+
+    /**
+     * Opens the log in a directory, creating it if needed, and starts committing.
+     *
+     * @param directory The directory holding the segments.
+     * @param logSink   Where commit errors are reported.
+     * @throws IOException If the directory or the segments cannot be opened.
+     */
+    public MessageLog(Path directory, LogSink logSink) throws IOException {
+        this(directory, logSink, SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the log with segments of another size, so that tests can cross segments quickly. A log
+     * must always be opened with the same size.
+     *
+     * @param directory    The directory holding the segments.
+     * @param logSink      Where commit errors are reported.
+     * @param segmentBytes The size at which a new segment is started.
+     * @throws IOException If the directory or the segments cannot be opened.
+     */
+    MessageLog(Path directory, LogSink logSink, int segmentBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.logSink = logSink;
+        this.segmentBytes = segmentBytes;
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(LOG_SUFFIX)) {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+                }
+            }
+        }
+        bases.sort(null);
+        if (bases.isEmpty()) {
+            bases.add(0L);
+        }
+        Segment[] opened = new Segment[bases.size()];
+        try {
+            for (int i = 0; i < opened.length; i++) {
+                opened[i] = new Segment(directory, bases.get(i), segmentBytes);
+                if (i < opened.length - 1) {
+                    opened[i].load(bases.get(i + 1));
+                } else {
+                    opened[i].recover();
+                }
+            }
+        } catch (IOException e) {
+            for (Segment segment : opened) {
+                if (segment != null) {
+                    segment.close();
+                }
+            }
+            throw e;
+        }
+        segments = opened;
+        committer.scheduleWithFixedDelay(this::commit, COMMIT_INTERVAL, COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends a message. Returns as soon as the record is written to the page cache; it reaches the
+     * disk with the next commit.
+     *
+     * @param frame The TEXT frame, from its position to its limit.
+     * @return The offset of the message.
+     * @throws IOException If the record cannot be written.
+     */
+    public synchronized long append(ByteBuffer frame) throws IOException {
+        int length = frame.remaining();
+        Segment active = segments[segments.length - 1];
+        if (active.size + RECORD_HEADER + length > segmentBytes) {
+            active = roll(active);
+        }
+        crc.reset();
+        crc.update(frame.duplicate());
+        record.clear();
+        record.putInt(length).putInt((int) crc.getValue()).put(frame.duplicate()).flip();
+        long offset = active.append(record);
+        dirty = true;
+        return offset;
+    }
+
+    /**
+     * Seals the segment being written to and starts the next one, deleting the oldest if there are
+     * too many. Called with the lock held.
+     */
+    private Segment roll(Segment active) throws IOException {
+        active.force(); // Sealed segments are complete on disk.
+        active.index.force();
+        Segment created = new Segment(directory, active.next, segmentBytes);
+        Segment[] current = segments;
+        int dropped = current.length >= MAX_SEGMENTS ? 1 : 0;
+        Segment[] rolled = Arrays.copyOfRange(current, dropped, current.length + 1);
+        rolled[rolled.length - 1] = created;
+        segments = rolled;
+        if (dropped > 0) {
+            current[0].release(); // Deleted once the reads still going through it are done.
+        }
+        return created;
+    }
+
+    /**
+     * Hands over the messages from an offset on, in order, reading across segments. Messages older
+     * than the oldest segment kept are skipped.
+     *
+     * @param from     The offset of the first message.
+     * @param max      The most messages to hand over.
+     * @param consumer Receives each frame, from its position to its limit, valid only during the call.
+     * @return The number of messages handed over.
+     * @throws IOException If a segment cannot be read.
+     */
+    public int read(long from, int max, Consumer<ByteBuffer> consumer) throws IOException {
+        Segment[] current = segments;
+        int first = 0; // Binary search for the last segment starting at or before the offset.
+        int last = current.length - 1;
+        while (first < last) {
+            int middle = (first + last + 1) >>> 1;
+            if (current[middle].base <= from) {
+                first = middle;
+            } else {
+                last = middle - 1;
+            }
+        }
+        int[] count = {0};
+        for (int i = first; i < current.length && count[0] < max; i++) {
+            Segment segment = current[i];
+            if (!segment.retain()) {
+                continue; // Dropped since the segments were looked up; its messages are too old now.
+            }
+            try {
+                segment.read(Math.max(from, segment.base), (offset, position, frame) -> {
+                    consumer.accept(frame);
+                    return ++count[0] < max;
+                });
+            } finally {
+                segment.release();
+            }
+        }
+        return count[0];
+    }
+
+    /**
+     * @return The offset the next message appended gets, which is the number of messages ever logged.
+     */
+    public long end() {
+        Segment[] current = segments;
+        return current[current.length - 1].next;
+    }
+
+    /**
+     * Forces the messages appended since the last commit to disk, all with one fsync.
+     */
+    private void commit() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false; // Messages appended while forcing are committed next time.
+        try {
+            Segment[] current = segments;
+            current[current.length - 1].force();
+        } catch (IOException e) {
+            logSink.error("Cannot commit message log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops committing, commits what is left and closes the segments.
+     *
+     * @throws IOException If the last messages cannot be committed or a segment cannot be closed.
+     */
+    public synchronized void close() throws IOException {
+        committer.shutdown(); // Not interrupted: an interrupt during a commit would close the segment's channel.
+        try {
+            committer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        IOException failure = null;
+        for (Segment segment : segments) {
+            try {
+                segment.force();
+                segment.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
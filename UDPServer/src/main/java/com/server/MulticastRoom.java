@@ -0,0 +1,296 @@
+package com.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers messages and images to every client at once through an IP multicast group, for rooms
+ * whose clients share a LAN.
+ *
+ * Each message and each chunk is sent once, whatever the number of clients. Nobody acknowledges the
+ * group's traffic; instead a client that notices a gap sends a NACK naming what it misses, and the
+ * missing frames are sent to the group again, where any other client that lost them picks them up
+ * too. To that end, messages carry a sequence number in the room's message stream and the last
+ * {@link #MESSAGE_HISTORY} of them are kept, and the last {@link #REPAIR_TRANSFERS} images can be
+ * read again from their files. Without acks there is no congestion control either, so images are
+ * paced at a fixed rate chosen for the LAN. Nor is there a loss rate to adapt to, so images always
+ * carry parity sized for {@link #EXPECTED_LOSS}, which lets most clients repair a lost chunk without
+ * a NACK.
+ *
+ * Clients behind the same lossy hop lose the same frames and all ask for them. A frame repaired in
+ * the last {@link #REPAIR_HOLDOFF} is not sent again, since the NACKs asking for it again were sent
+ * before the repair reached their clients. Repairs share the room's pacer with images, so a storm of
+ * NACKs cannot push the group past its rate either; but rather than wait for tokens, which would hold
+ * up every other frame from the client that sent the NACK, a repair the pacer has no room for is
+ * dropped and left to the clients' next NACK, which they send after a randomized back-off.
+ */
+public class MulticastRoom {
+    private static final int MESSAGE_HISTORY = 256; // Recent messages kept for repair; a power of two.
+    private static final int REPAIR_TRANSFERS = 64; // Recent images that can still be repaired.
+    private static final long PACING_QUANTUM = TimeUnit.MILLISECONDS.toNanos(1); // Sending time the pacer releases at once.
+    private static final int PACING_BURST = 4; // Fewest datagrams the pacer lets out back to back.
+    private static final double EXPECTED_LOSS = 0.02; // Share of chunks the parity is sized for.
+    private static final long REPAIR_HOLDOFF = TimeUnit.MILLISECONDS.toNanos(40); // How long a repaired frame is not repaired again; a LAN round trip plus the clients' NACK jitter.
+    private static final int REPAIR_MEMORY = 4096; // Recent repairs remembered for the hold-off.
+
+    /**
+     * An image recently sent to the group, kept so lost chunks can be sent again.
+     */
+    private static final class Transfer {
+        private final File file; // File the image was read from.
+        private final ByteBuffer announcement; // The FILE_META frame, for clients that missed it.
+
+        Transfer(File file, ByteBuffer announcement) {
+            this.file = file;
+            this.announcement = announcement;
+        }
+    }
+
+    private final SendQueue sendQueue; // Sends the group's traffic through the channel, holding it back while the socket buffer is full.
+    private final InetSocketAddress group; // Multicast group and port the clients listen on.
+    private final TextCoalescer texts; // Packs bursts of messages into shared datagrams.
+    private final LogSink logSink; // Where progress and errors are reported.
+    private final TokenBucket pacer; // Spreads the images and repairs sent to the group at the room's rate; guarded by itself.
+    private final ByteBuffer[] messages = new ByteBuffer[MESSAGE_HISTORY]; // Recent messages, by sequence number modulo the history size.
+    private int messageSequence; // Sequence number of the last message sent; guarded by messages.
+    private final Map<Integer, Transfer> transfers = new LinkedHashMap<Integer, Transfer>() { // Recent images by transfer ID; guarded by itself.
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Transfer> eldest) {
+            return size() > REPAIR_TRANSFERS;
+        }
+    };
+    private final Map<Long, Long> repaired = new LinkedHashMap<Long, Long>() { // When each recent repair was sent, by transfer ID and sequence number; guarded by itself.
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > REPAIR_MEMORY;
+        }
+    };
+
+    /**
+     * Creates a room sending to a multicast group.
+     *
+     * @param sendQueue      The queue of the channel to send through.
+     * @param group          The multicast group and port the clients listen on.
+     * @param texts          The coalescer messages are queued on.
+     * @param logSink        Where progress and errors are reported.
+     * @param bytesPerSecond The rate images and repairs are sent at.
+     */
+    public MulticastRoom(SendQueue sendQueue, InetSocketAddress group, TextCoalescer texts, LogSink logSink, double bytesPerSecond) {
+        this.sendQueue = sendQueue;
+        this.group = group;
+        this.texts = texts;
+        this.logSink = logSink;
+        long burst = Math.max((long) PACING_BURST * FrameCodec.MAX_DATAGRAM, (long) (bytesPerSecond * PACING_QUANTUM / 1e9));
+        this.pacer = new TokenBucket(burst);
+        pacer.setRate(bytesPerSecond, burst);
+    }
+
+    /**
+     * Sends a message to the group, numbered in the room's message stream.
+     *
+     * @param message The TEXT frame, from its position to its limit. Its content is copied.
+     */
+    public void sendText(ByteBuffer message) {
+        ByteBuffer frame = ByteBuffer.allocate(message.remaining());
+        frame.put(message.duplicate()).flip();
+        synchronized (messages) { // Queue in sequence order.
+            int sequence = ++messageSequence;
+            FrameCodec.setSequence(frame, 0, sequence);
+            messages[sequence & (MESSAGE_HISTORY - 1)] = frame;
+            texts.send(group, frame.duplicate());
+        }
+    }
+
+    /**
+     * Sends an image to the group: the announcement, then every chunk once, paced. Returns when the
+     * last chunk has been sent; repairs are handled afterwards by {@link #repair}.
+     *
+     * @param image    The file to send.
+     * @param fileName The name the image was uploaded under.
+     * @param userName The username of the client that sent the image.
+     * @param hash     The SHA-256 of the file.
+     * @param original The SHA-256 of the original image if the file is its preview, otherwise null.
+     * @throws IOException If the file cannot be read or the channel fails.
+     */
+    public void sendImage(File image, String fileName, String userName, byte[] hash, byte[] original) throws IOException {
+        try (FileChannel file = FileChannel.open(image.toPath(), StandardOpenOption.READ)) {
+            long fileLength = file.size();
+            int totalChunks = (int) Math.max(1, (fileLength + ChunkSender.CHUNK_SIZE - 1) / ChunkSender.CHUNK_SIZE);
+            int transferId;
+            do {
+                transferId = ThreadLocalRandom.current().nextInt();
+            } while (transferId == 0); // Transfer ID 0 names the message stream in NACKs.
+
+            ByteBuffer announcement = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+            FrameCodec.encodeFileMeta(announcement, transferId, userName, fileName, fileLength, hash, original);
+            announcement.flip();
+            synchronized (transfers) {
+                transfers.put(transferId, new Transfer(image, announcement));
+            }
+            sendQueue.send(announcement.duplicate(), group);
+
+            FecEncoder fec = new FecEncoder(transferId, EXPECTED_LOSS);
+            ByteBuffer chunk = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+            ByteBuffer parity = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+            for (int sequence = 1; sequence <= totalChunks; sequence++) {
+                pace();
+                ChunkSender.readChunk(file, fileLength, transferId, sequence, totalChunks, chunk);
+                sendQueue.send(chunk.duplicate(), group);
+                logSink.count(LogSink.Counter.CHUNKS_SENT);
+                if (fec.add(chunk, 0)) {
+                    fec.writeParity(parity);
+                    pace();
+                    sendQueue.send(parity, group);
+                    logSink.count(LogSink.Counter.PARITY_SENT);
+                }
+            }
+            logSink.info("Image " + fileName + " sent to the group in " + totalChunks + " chunks");
+        }
+    }
+
+    /**
+     * Waits until the room's pacer lets a datagram out.
+     */
+    private void pace() {
+        while (true) {
+            long wait;
+            synchronized (pacer) {
+                wait = pacer.tryConsume(FrameCodec.MAX_DATAGRAM);
+            }
+            if (wait == 0) {
+                return;
+            }
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    /**
+     * Takes tokens for a datagram from the room's pacer without waiting.
+     *
+     * @return true if the datagram may be sent now.
+     */
+    private boolean tryPace() {
+        synchronized (pacer) {
+            return pacer.tryConsume(FrameCodec.MAX_DATAGRAM) == 0;
+        }
+    }
+
+    /**
+     * Records that a frame is about to be repaired, unless it already was within the hold-off.
+     *
+     * @param transferId The transfer of the frame, or 0 for the message stream.
+     * @param sequence   The sequence number of the frame, or 0 for an image's announcement.
+     * @return true if the frame should be sent again.
+     */
+    private boolean claimRepair(int transferId, int sequence) {
+        long key = (long) transferId << 32 | sequence & 0xFFFFFFFFL;
+        long now = System.nanoTime();
+        synchronized (repaired) {
+            Long last = repaired.get(key);
+            if (last != null && now - last < REPAIR_HOLDOFF) {
+                return false; // Already on its way to every client.
+            }
+            repaired.remove(key); // Re-inserted as the newest.
+            repaired.put(key, now);
+            return true;
+        }
+    }
+
+    /**
+     * Forgets the claim on a frame that could not be sent after all, so the next NACK for it is served.
+     *
+     * @param transferId The transfer of the frame, or 0 for the message stream.
+     * @param sequence   The sequence number of the frame, or 0 for an image's announcement.
+     */
+    private void releaseRepair(int transferId, int sequence) {
+        long key = (long) transferId << 32 | sequence & 0xFFFFFFFFL;
+        synchronized (repaired) {
+            repaired.remove(key);
+        }
+    }
+
+    /**
+     * Sends again what a NACK frame reports as missing: messages from the message stream, the
+     * announcement of an image, or chunks of an image. Frames repaired within the hold-off are skipped,
+     * and once the pacer runs out of tokens the rest are dropped for the clients to ask for again. Never
+     * waits for the pacer, so the NACK does not delay the frames queued behind it.
+     *
+     * @param nack The buffer holding the NACK frame.
+     * @param at   The position of the frame in the buffer.
+     */
+    public void repair(ByteBuffer nack, int at) {
+        int transferId = FrameCodec.transferId(nack, at);
+        int first = FrameCodec.sequence(nack, at);
+        long bitmap = FrameCodec.ackBitmap(nack, at);
+        if (transferId == 0) {
+            repairMessages(first, bitmap);
+            return;
+        }
+        Transfer transfer;
+        synchronized (transfers) {
+            transfer = transfers.get(transferId);
+        }
+        if (transfer == null) {
+            return; // Too old to repair.
+        }
+        try {
+            if (first == 0) { // The client saw chunks but missed the announcement.
+                if (claimRepair(transferId, 0)) {
+                    if (tryPace()) {
+                        sendQueue.send(transfer.announcement.duplicate(), group);
+                    } else {
+                        releaseRepair(transferId, 0);
+                        logSink.count(LogSink.Counter.REPAIRS_DEFERRED);
+                    }
+                }
+                return;
+            }
+            try (FileChannel file = FileChannel.open(transfer.file.toPath(), StandardOpenOption.READ)) {
+                long fileLength = file.size();
+                int totalChunks = (int) Math.max(1, (fileLength + ChunkSender.CHUNK_SIZE - 1) / ChunkSender.CHUNK_SIZE);
+                ByteBuffer chunk = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+                for (int bit = -1; bit < 64; bit++) { // -1 stands for the first missing chunk itself.
+                    int sequence = first + 1 + bit;
+                    if ((bit < 0 || (bitmap & (1L << bit)) != 0) && sequence >= 1 && sequence <= totalChunks
+                            && claimRepair(transferId, sequence)) {
+                        if (!tryPace()) {
+                            releaseRepair(transferId, sequence);
+                            logSink.count(LogSink.Counter.REPAIRS_DEFERRED);
+                            break; // The pacer is empty; the rest would be dropped as well.
+                        }
+                        ChunkSender.readChunk(file, fileLength, transferId, sequence, totalChunks, chunk);
+                        sendQueue.send(chunk, group);
+                        logSink.count(LogSink.Counter.RETRANSMITS);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logSink.error("Error repairing transfer " + transferId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends again the messages a NACK reports as missing, if they are still in the history.
+     */
+    private void repairMessages(int first, long bitmap) {
+        synchronized (messages) {
+            for (int bit = -1; bit < 64; bit++) {
+                int sequence = first + 1 + bit;
+                if ((bit < 0 || (bitmap & (1L << bit)) != 0) && sequence >= 1 && sequence <= messageSequence
+                        && messageSequence - sequence < MESSAGE_HISTORY && claimRepair(0, sequence)) {
+                    texts.send(group, messages[sequence & (MESSAGE_HISTORY - 1)].duplicate());
+                    logSink.count(LogSink.Counter.RETRANSMITS);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.server;
+
+import java.util.List;
+
+/**
+ * Observer of a {@link RelayServer}. Methods are called on the server's own threads, so an
+ * implementation that touches a user interface must hand the work over to the UI thread itself.
+ */
+@FunctionalInterface
+public interface RelayListener {
+    /**
+     * Called a fixed number of times per second with the events reported since the previous call.
+     * Never called with an empty batch.
+     *
+     * @param entries The events, oldest first.
+     */
+    void onLog(List<LogSink.Entry> entries);
+
+    /**
+     * Called once the server has stopped, whether by request or because of an error.
+     */
+    default void onStopped() {
+    }
+}
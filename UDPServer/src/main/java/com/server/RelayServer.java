@@ -0,0 +1,1009 @@
+package com.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * The relay engine: accepts logins, relays chat messages and receives and fans out images.
+ *
+ * It has no dependency on JavaFX and can run on its own through {@link #main(String[])}. Anything
+ * that wants to follow what the server is doing, such as the JavaFX window, registers a
+ * {@link RelayListener}. Events are queued in a {@link LogSink} by the threads that produce them and
+ * handed to the listeners in batches, a fixed number of times per second, on a separate log thread.
+ *
+ * Where the platform supports SO_REUSEPORT, the port is served by one {@link ServerShard} per core,
+ * each with its own channel and I/O thread; otherwise by a single shard.
+ */
+public class RelayServer {
+    public static final int DEFAULT_PORT = 5010; // Port on which the server listens unless told otherwise.
+    public static final String DEFAULT_SAVE_RUTE = System.getProperty("user.home") + File.separator + "Downloads"
+            + File.separator + "ServerImages"; // Path where received images are saved unless told otherwise.
+    private static final int BUFFER_SIZE = FrameCodec.MAX_DATAGRAM; // Buffer size for receiving data packets.
+    private static final int SHARDS = Runtime.getRuntime().availableProcessors(); // Receive shards, if the port can be shared.
+    private static final int WORKER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors()); // Number of message handler threads.
+    private static final int UPLOAD_IDLE_TIMEOUT = 5000; // Milliseconds without a chunk before an upload is abandoned.
+    private static final int SESSION_LINGER = 2000; // Milliseconds a finished upload keeps re-acknowledging late duplicates.
+    private static final int CLIENT_LEASE = 10000; // Milliseconds a client stays registered without a heartbeat.
+    private static final int PROBE_TIMEOUT = 1000; // Milliseconds to wait for a client to answer an image announcement.
+    private static final int PROBE_ATTEMPTS = 3; // Announcements sent before giving up on a client.
+    private static final double MULTICAST_RATE = 12_500_000; // Bytes per second images are sent to a multicast group at (100 Mbit/s).
+    private static final long COALESCE_WINDOW = TimeUnit.MILLISECONDS.toNanos(1); // How long a message waits for others to the same client.
+    private static final int PREVIEW_SIZE = 200; // Side of the box previews are scaled into, matching the client's image view.
+    private static final int PARTIAL_SWEEP_INTERVAL = 60; // Minutes between sweeps of partial uploads nobody resumed.
+    private static final int STOP_TIMEOUT = 2000; // Milliseconds stop() lets running tasks finish before interrupting them.
+    private static final int LOG_FRAME_INTERVAL = 100; // Milliseconds between batches of log messages handed to listeners.
+    private static final int LOG_BATCH_SIZE = 256; // Most log messages handed to listeners per batch.
+    private static final int REPLAY_MESSAGES = 50; // Recent messages sent to a client when it logs in.
+
+    private final int port; // Port on which the server listens.
+    private final String saveRoute; // Path where received images are saved.
+    private final InetSocketAddress multicastGroup; // Group messages and images are sent to, or null to unicast them.
+    private final NetworkInterface multicastNetwork; // Interface multicast is sent through, or null for the default.
+    private MulticastRoom room; // Sends to the multicast group; null when unicasting.
+    private BlobStore blobStore; // Received images, stored once each under the hash of their content.
+    private MessageLog messageLog; // Every message relayed, kept on disk for clients that join later.
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, 1024); // Reusable buffers for every datagram received or sent on the server channel.
+    private final List<RelayListener> listeners = new CopyOnWriteArrayList<>(); // Observers of server events.
+    private final LogSink logSink = new LogSink(4096); // Server events waiting to be handed to the listeners.
+    private ClientRegistry clients; // Logged-in clients, by address, by username and by shard.
+    private final Map<TransferKey, TransferSession> uploadSessions = new ConcurrentHashMap<>(); // Uploads in progress, keyed by uploader address and transfer ID.
+    private ServerShard[] shards; // Channels bound to the port, each read by its own I/O thread.
+    private ExecutorService[] workers; // Single-threaded handlers; a client always maps to the same one, keeping its messages in order.
+    private ExecutorService transferPool; // One virtual thread per image fan-out, original and recipient; each blocks for its whole transfer.
+    private final ThreadFactory transferThreads = Thread.ofVirtual().name("server-transfer-", 0).factory(); // Creates the transfer threads.
+    private ScheduledExecutorService sessionSweeper; // Expires finished and abandoned uploads.
+    private ScheduledExecutorService logDispatcher; // Drains the log sink into the listeners.
+    private ScheduledExecutorService textFlusher; // Sends coalesced messages when their window closes.
+    private final AtomicBoolean stopped = new AtomicBoolean(); // Set by the first call to stop().
+
+    /**
+     * Creates a server that is not yet listening.
+     *
+     * @param port      The port on which to listen.
+     * @param saveRoute The directory of the image store.
+     */
+    public RelayServer(int port, String saveRoute) {
+        this(port, saveRoute, null, null);
+    }
+
+    /**
+     * Creates a server that is not yet listening and, if a group is given, delivers messages and
+     * images to the clients through IP multicast instead of one copy per client.
+     *
+     * @param port             The port on which to listen.
+     * @param saveRoute        The directory of the image store.
+     * @param multicastGroup   The multicast group and port the clients listen on, or null to unicast.
+     * @param multicastNetwork The interface to send multicast through, or null for the system default.
+     */
+    public RelayServer(int port, String saveRoute, InetSocketAddress multicastGroup, NetworkInterface multicastNetwork) {
+        this.port = port;
+        this.saveRoute = saveRoute;
+        this.multicastGroup = multicastGroup;
+        this.multicastNetwork = multicastNetwork;
+    }
+
+    /**
+     * Runs the server without a user interface, logging to standard output.
+     *
+     * @param args Optional port, save directory, multicast group as group:port and multicast interface name, in that order.
+     */
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String saveRoute = args.length > 1 ? args[1] : DEFAULT_SAVE_RUTE;
+        InetSocketAddress multicastGroup = null;
+        NetworkInterface multicastNetwork = null;
+        try {
+            if (args.length > 2) { // group:port, for example 239.255.0.1:5011
+                int colon = args[2].lastIndexOf(':');
+                multicastGroup = new InetSocketAddress(InetAddress.getByName(args[2].substring(0, colon)),
+                        Integer.parseInt(args[2].substring(colon + 1)));
+            }
+            if (args.length > 3) {
+                multicastNetwork = NetworkInterface.getByName(args[3]);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Invalid multicast group or interface: " + e.getMessage());
+            System.exit(1);
+        }
+
+        RelayServer server = new RelayServer(port, saveRoute, multicastGroup, multicastNetwork);
+        server.addListener(entries -> entries.forEach(System.out::println));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop)); // Close the socket on Ctrl+C.
+        try {
+            server.start();
+        } catch (IOException e) {
+            System.err.println("Cannot listen on port " + port + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Registers an observer of server events.
+     *
+     * @param listener The listener to be notified.
+     */
+    public void addListener(RelayListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return The sink this server logs to, for adjusting its level.
+     */
+    public LogSink getLogSink() {
+        return logSink;
+    }
+
+    /**
+     * Unregisters an observer of server events.
+     *
+     * @param listener The listener to be removed.
+     */
+    public void removeListener(RelayListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Binds the shards' channels and starts a selector-driven I/O loop for each in a separate thread.
+     * The loops only receive and classify datagrams and send queued messages; handling happens on
+     * the worker threads so a slow handler never stalls receiving.
+     *
+     * @throws IOException If the channels cannot be opened or bound.
+     */
+    public void start() throws IOException {
+        blobStore = new BlobStore(Paths.get(saveRoute));
+        messageLog = new MessageLog(Paths.get(saveRoute, "messages"), logSink);
+        textFlusher = Executors.newSingleThreadScheduledExecutor();
+        boolean reusePort = SHARDS > 1 && ServerShard.canReusePort();
+        shards = new ServerShard[reusePort ? SHARDS : 1];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                int boundPort = i == 0 ? port : shards[0].getLocalPort(); // The same port, even if the first shard picked it.
+                shards[i] = new ServerShard(i, boundPort, reusePort, textFlusher, COALESCE_WINDOW, logSink);
+            }
+        } catch (IOException e) {
+            closeShards();
+            textFlusher.shutdownNow();
+            messageLog.close();
+            throw e;
+        }
+        clients = new ClientRegistry(shards.length);
+
+        workers = new ExecutorService[WORKER_THREADS];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = Executors.newSingleThreadExecutor();
+        }
+        transferPool = Executors.newThreadPerTaskExecutor(transferThreads);
+        sessionSweeper = Executors.newSingleThreadScheduledExecutor();
+        sessionSweeper.scheduleWithFixedDelay(this::sweepSessions, 1, 1, TimeUnit.SECONDS);
+        sessionSweeper.scheduleWithFixedDelay(this::evictClients, 1, 1, TimeUnit.SECONDS);
+        sessionSweeper.scheduleWithFixedDelay(this::sweepPartials, PARTIAL_SWEEP_INTERVAL, PARTIAL_SWEEP_INTERVAL, TimeUnit.MINUTES);
+        logDispatcher = Executors.newSingleThreadScheduledExecutor();
+        logDispatcher.scheduleAtFixedRate(this::dispatchLog, 0, LOG_FRAME_INTERVAL, TimeUnit.MILLISECONDS);
+        if (multicastGroup != null) {
+            DatagramChannel groupChannel = shards[0].getChannel(); // The group's traffic goes out through the first shard.
+            if (multicastNetwork != null) {
+                groupChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastNetwork);
+            }
+            groupChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true); // Clients on this host hear the group too.
+            room = new MulticastRoom(shards[0].getSendQueue(), multicastGroup, shards[0].getTexts(), logSink, MULTICAST_RATE);
+        }
+
+        for (ServerShard shard : shards) {
+            new Thread(() -> runShard(shard), "server-io-" + shard.getIndex()).start();
+        }
+        log("Server started on port " + port + " with " + shards.length + " receive shard" + (shards.length > 1 ? "s" : "")
+                + (room != null ? ", multicasting to " + multicastGroup : ""));
+    }
+
+    /**
+     * The I/O loop of a shard: reads the datagrams the selector reports and sends the messages queued
+     * for the shard's clients, until the shard is closed.
+     *
+     * @param shard The shard to serve.
+     */
+    private void runShard(ServerShard shard) {
+        try {
+            while (true) {
+                shard.getSelector().select(); // Wait until the channel has datagrams to read or messages are queued.
+                Iterator<SelectionKey> keys = shard.getSelector().selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isWritable()) {
+                        shard.getSendQueue().flush(); // The socket buffer has room for what was held back.
+                    }
+                    if (key.isReadable()) {
+                        drainChannel(shard.getChannel());
+                    }
+                }
+                shard.sendQueued(clients.clients(shard.getIndex()));
+            }
+        } catch (ClosedSelectorException | ClosedChannelException e) {
+            log("Server socket closed"); // stop() was called.
+        } catch (Exception e) {
+            logSink.error("Error serving port " + port + ": " + e.getMessage());
+            stop(); // Nothing left to serve.
+        }
+    }
+
+    /**
+     * Reads every datagram currently queued on a channel and dispatches each one. Each datagram is
+     * received into a pooled buffer that travels with it to the handler, which returns it to the pool.
+     *
+     * @param channel The shard's channel.
+     * @throws IOException If the channel fails.
+     */
+    private void drainChannel(DatagramChannel channel) throws IOException {
+        while (true) {
+            ByteBuffer datagram = bufferPool.acquire(); // Buffer for incoming data.
+            SocketAddress sender = channel.receive(datagram);
+            if (sender == null) {
+                bufferPool.release(datagram); // Nothing left to read.
+                return;
+            }
+            datagram.flip();
+            if (!FrameCodec.isValid(datagram, 0)) {
+                logSink.count(LogSink.Counter.MALFORMED);
+                bufferPool.release(datagram);
+                continue;
+            }
+            dispatch(datagram, (InetSocketAddress) sender);
+        }
+    }
+
+    /**
+     * Routes a frame to the upload session it belongs to, or to a worker thread based on its type.
+     * Only the fixed header is read here; payloads are decoded by the handlers. The datagram's
+     * buffer is returned to the pool once its handler has finished with it.
+     *
+     * @param datagram            The frame received from a client.
+     * @param clientSocketAddress The address of the client.
+     */
+    private void dispatch(ByteBuffer datagram, InetSocketAddress clientSocketAddress) {
+        switch (FrameCodec.type(datagram, 0)) { // Handle different message types.
+            case FrameCodec.CHUNK:
+            case FrameCodec.PARITY: {
+                TransferSession session = uploadSessions.get(new TransferKey(clientSocketAddress, FrameCodec.transferId(datagram, 0)));
+                if (session != null) { // Chunk of an upload in progress.
+                    handOff(clientSocketAddress, datagram, () -> receiveChunk(session, datagram, clientSocketAddress));
+                } else {
+                    bufferPool.release(datagram);
+                }
+                break;
+            }
+            case FrameCodec.CHECK_USERNAME:
+                handOff(clientSocketAddress, datagram, () -> handleUsernameCheck(FrameCodec.userName(datagram, 0),
+                        clientSocketAddress));
+                break;
+            case FrameCodec.HEARTBEAT:
+                renewOrRelogin(clientSocketAddress); // Nothing else to do, so no need for a worker.
+                bufferPool.release(datagram);
+                break;
+            case FrameCodec.TEXT:
+                if (!renewOrRelogin(clientSocketAddress)) {
+                    bufferPool.release(datagram); // Only registered clients may talk to the room.
+                    break;
+                }
+                handOff(clientSocketAddress, datagram, () -> receiveMessage(datagram));
+                break;
+            case FrameCodec.FETCH:
+                if (!renewOrRelogin(clientSocketAddress)) {
+                    bufferPool.release(datagram);
+                    break;
+                }
+                handOff(clientSocketAddress, datagram, () -> {
+                    byte[] hash = FrameCodec.originalHash(datagram, 0);
+                    String userName = FrameCodec.userName(datagram, 0);
+                    String fileName = FrameCodec.body(datagram, 0);
+                    transferPool.execute(() -> sendOriginal(hash, userName, fileName, clientSocketAddress)); // Read now; the buffer goes back to the pool.
+                });
+                break;
+            case FrameCodec.NACK:
+                if (room != null && clients.get(clientSocketAddress) != null) { // Only the room's clients may ask for repairs.
+                    handOff(clientSocketAddress, datagram, () -> room.repair(datagram, 0));
+                } else {
+                    logSink.count(LogSink.Counter.MALFORMED);
+                    bufferPool.release(datagram);
+                }
+                break;
+            case FrameCodec.FILE_META: {
+                if (!renewOrRelogin(clientSocketAddress)) {
+                    bufferPool.release(datagram); // Only registered clients may post images to the room.
+                    break;
+                }
+                TransferKey key = new TransferKey(clientSocketAddress, FrameCodec.transferId(datagram, 0));
+                TransferSession existing = uploadSessions.get(key);
+                if (existing != null) { // The uploader missed our reply and probed again.
+                    bufferPool.release(datagram);
+                    workerFor(clientSocketAddress).execute(() -> sendFileStatus(existing, clientSocketAddress));
+                    break;
+                }
+                // Register the session here rather than on the worker, so chunks that arrive right
+                // behind the reply are recognised as part of this upload.
+                TransferSession session = new TransferSession(FrameCodec.userName(datagram, 0), FrameCodec.body(datagram, 0),
+                        key.getTransferId(), FrameCodec.fileSize(datagram, 0), FrameCodec.fileHash(datagram, 0));
+                bufferPool.release(datagram);
+                uploadSessions.put(key, session);
+                workerFor(clientSocketAddress).execute(() -> receiveImage(session, clientSocketAddress));
+                break;
+            }
+            default:
+                logSink.count(LogSink.Counter.MALFORMED);
+                bufferPool.release(datagram);
+        }
+    }
+
+    /**
+     * Renews the lease of the client a packet came from. If the address is not registered, for
+     * example because its lease ran out while the client was asleep, the client is told to log in
+     * again instead.
+     *
+     * @param address The address the packet came from.
+     * @return true if the address belongs to a registered client.
+     */
+    private boolean renewOrRelogin(InetSocketAddress address) {
+        if (clients.renew(address)) {
+            return true;
+        }
+        ByteBuffer relogin = bufferPool.acquire();
+        try {
+            FrameCodec.encodeRelogin(relogin);
+            shardFor(address).send(relogin.flip(), address);
+        } catch (IOException e) {
+            logSink.error("Error asking " + address + " to log in again: " + e.getMessage());
+        } finally {
+            bufferPool.release(relogin);
+        }
+        return false;
+    }
+
+    /**
+     * Runs a handler on the client's worker thread and returns the datagram's buffer to the pool
+     * once the handler has finished.
+     *
+     * @param clientSocketAddress The address of the client.
+     * @param datagram            The pooled buffer the handler reads from.
+     * @param handler             The work to run.
+     */
+    private void handOff(SocketAddress clientSocketAddress, ByteBuffer datagram, Runnable handler) {
+        workerFor(clientSocketAddress).execute(() -> {
+            try {
+                handler.run();
+            } finally {
+                bufferPool.release(datagram);
+            }
+        });
+    }
+
+    /**
+     * Picks the worker thread responsible for a client.
+     *
+     * @param clientSocketAddress The address of the client.
+     * @return The executor that handles every message from that client.
+     */
+    private ExecutorService workerFor(SocketAddress clientSocketAddress) {
+        return workers[Math.floorMod(clientSocketAddress.hashCode(), workers.length)];
+    }
+
+    /**
+     * Picks the shard that sends to a client.
+     *
+     * @param address The address of the client.
+     * @return The shard the client is assigned to.
+     */
+    private ServerShard shardFor(SocketAddress address) {
+        return shards[clients.shardOf((InetSocketAddress) address)];
+    }
+
+    /**
+     * Handles username availability checks from clients. A granted username is registered together
+     * with the client's address and stays reserved for as long as the client keeps its lease.
+     *
+     * @param username            The username to be checked.
+     * @param clientSocketAddress The address of the client requesting the check.
+     */
+    private void handleUsernameCheck(String username, InetSocketAddress clientSocketAddress) {
+        InetAddress clientAddress = clientSocketAddress.getAddress();
+        int clientPort = clientSocketAddress.getPort();
+        ClientRegistry.Registration registration = clients.register(username, clientSocketAddress);
+        if (registration.granted()) {
+            sendResponse(clientAddress, clientPort, true); // Notify client username is available.
+            log("Client accepted - PORT: " + clientPort + ", IP: " + clientAddress);
+            if (registration == ClientRegistry.Registration.NEW) {
+                replayMessages(clientSocketAddress); // A client that only renewed its lease has seen them already.
+            }
+        } else {
+            sendResponse(clientAddress, clientPort, false); // Notify client username is taken.
+        }
+    }
+
+    /**
+     * Sends a client that just logged in the last messages of the chat, from the message log, packed
+     * into as few datagrams as they fit.
+     *
+     * @param address The address of the client.
+     */
+    private void replayMessages(InetSocketAddress address) {
+        TextCoalescer texts = shardFor(address).getTexts();
+        try {
+            int replayed = messageLog.read(Math.max(0, messageLog.end() - REPLAY_MESSAGES), REPLAY_MESSAGES,
+                    frame -> texts.send(address, frame));
+            logSink.debug("Replayed " + replayed + " messages to " + address);
+        } catch (IOException e) {
+            logSink.error("Cannot replay messages to " + address + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the server by closing the channel and shutting down the worker threads, then tells every
+     * listener that the server has stopped. Uploads are only suspended and the message log closed
+     * once no worker can write to them anymore. Calling it again, from any thread, has no effect.
+     */
+    public void stop() {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        if (shards != null && clients != null) { // Both are set once start() got past opening the shards.
+            for (ServerShard shard : shards) {
+                if (shard != null) {
+                    shard.sendQueued(clients.clients(shard.getIndex())); // Messages not fanned out yet.
+                    shard.getTexts().flushAll(); // Messages still waiting for their window.
+                }
+            }
+        }
+        if (textFlusher != null) {
+            textFlusher.shutdownNow();
+        }
+        closeShards(); // Wake up and end the I/O loops.
+        if (sessionSweeper != null) {
+            sessionSweeper.shutdownNow(); // Hands no more abandoned uploads to the workers.
+        }
+        if (workers != null) {
+            for (ExecutorService worker : workers) {
+                worker.shutdown(); // All at once, so they drain in parallel.
+            }
+            for (ExecutorService worker : workers) {
+                shutdownAndWait(worker);
+            }
+        }
+        if (transferPool != null) {
+            shutdownAndWait(transferPool);
+        }
+        uploadSessions.forEach((key, session) -> {
+            if (!session.isComplete()) {
+                session.suspend(); // Saved for the uploader to resume once the server is back.
+            }
+        });
+        if (messageLog != null) {
+            try {
+                messageLog.close(); // Commits the last messages.
+            } catch (IOException e) {
+                logSink.error("Cannot close the message log: " + e.getMessage());
+            }
+        }
+        if (logDispatcher != null) {
+            logDispatcher.shutdown();
+            try {
+                if (logDispatcher.awaitTermination(LOG_FRAME_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    dispatchLog(); // Deliver whatever was logged while stopping; the sink has a single reader.
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (RelayListener listener : listeners) {
+            listener.onStopped();
+        }
+    }
+
+    /**
+     * Shuts an executor down and waits for its tasks, interrupting them if they take longer than
+     * {@link #STOP_TIMEOUT}.
+     *
+     * @param executor The executor to stop.
+     */
+    private void shutdownAndWait(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+                if (!executor.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    logSink.warn("Tasks still running after stop");
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes every shard that has been opened.
+     */
+    private void closeShards() {
+        if (shards == null) {
+            return;
+        }
+        for (ServerShard shard : shards) {
+            try {
+                if (shard != null) {
+                    shard.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sends the result of a username check to a client.
+     *
+     * @param clientAddress The IP address of the client.
+     * @param clientPort    The port of the client.
+     * @param available     Whether the username was accepted.
+     */
+    private void sendResponse(InetAddress clientAddress, int clientPort, boolean available) {
+        ByteBuffer sendData = bufferPool.acquire();
+        try {
+            FrameCodec.encodeUsernameResult(sendData, available); // Encode the response frame.
+            InetSocketAddress address = new InetSocketAddress(clientAddress, clientPort);
+            shardFor(address).send(sendData.flip(), address); // Send the packet, or queue it if the socket buffer is full.
+            logSink.debug("Response sent to client - IP: " + clientAddress + ", Port: " + clientPort + ", Response: " + (available ? "USERNAME_AVAILABLE" : "USERNAME_UNAVAILABLE"));
+        } catch (Exception e) {
+            logSink.error("Error sending response to client: " + e.getMessage());
+            e.printStackTrace(); // Print stack trace for debugging.
+        } finally {
+            bufferPool.release(sendData);
+        }
+    }
+
+    /**
+     * Handles received text messages. A message is forwarded first and only then appended to the
+     * message log, which returns without waiting for the disk, so logging adds nothing to delivery.
+     *
+     * @param message The TEXT frame received from a client.
+     */
+    private void receiveMessage(ByteBuffer message) {
+        String receivedUserName = FrameCodec.userName(message, 0); // Extract username.
+        String receivedMessage = FrameCodec.body(message, 0); // Extract message content.
+        log("Message received from " + receivedUserName + ": " + receivedMessage);
+
+        if (receivedMessage.equals("STOP")) {
+            log("Server stopped...");
+            new Thread(this::stop, "server-stop").start(); // Stop the server if "STOP" command is received; not from a worker, which stop() waits for.
+        } else {
+            forwardMessageToClients(message); // Forward message to all connected clients.
+            ByteBuffer frame = message.duplicate();
+            frame.limit(FrameCodec.next(message, 0));
+            try {
+                messageLog.append(frame);
+            } catch (IOException e) {
+                logSink.error("Cannot log message from " + receivedUserName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Forwards a message to all connected clients. The frame is relayed exactly as received: it is
+     * copied once and handed to every shard, whose own thread sends it to the shard's clients, and
+     * messages arriving close together are packed into shared datagrams per client.
+     *
+     * @param message The TEXT frame to be forwarded.
+     */
+    private void forwardMessageToClients(ByteBuffer message) {
+        ByteBuffer frame = message.duplicate();
+        frame.limit(FrameCodec.next(message, 0));
+        if (room != null) {
+            room.sendText(frame); // One copy for the whole group.
+            log("Message forwarded to the group");
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame).flip(); // The pooled buffer goes back to the pool once this handler returns.
+        for (ServerShard shard : shards) {
+            shard.broadcast(copy.asReadOnlyBuffer());
+        }
+        log("Message forwarded to all clients");
+    }
+
+    /**
+     * Answers the hash probe that starts every upload. If the store already has the content, the
+     * uploader is told to skip sending it and the stored blob is forwarded straight away; otherwise the
+     * partial file of the content is opened for the chunks, which are handled by receiveChunk as they
+     * arrive. If an earlier upload of the content was interrupted, the reply tells the uploader which
+     * chunks are already here, so it only sends the rest.
+     *
+     * @param session The session created from the file details.
+     * @param address The address of the uploader.
+     */
+    private void receiveImage(TransferSession session, SocketAddress address) {
+        byte[] hash = session.getHash();
+        if (blobStore.contains(hash)) {
+            session.skip();
+            sendFileStatus(session, address);
+            log("Already have image " + session.getFileName() + " from " + session.getUserName() + ", upload skipped");
+            transferPool.execute(() -> forwardImagesToClients(session.getFileName(), session.getUserName(), hash));
+            return;
+        }
+        try {
+            File partial = blobStore.claimPartial(hash);
+            if (partial != null) {
+                session.open(partial, blobStore.progressFor(partial)); // Resume whatever arrived before.
+            } else {
+                session.open(blobStore.newUpload()); // The same content is being uploaded already; start afresh.
+            }
+            sendFileStatus(session, address);
+            int resumed = session.getReceiver().getFoundLast();
+            log("Receiving image " + session.getFileName() + " (" + session.getFileSize() + " bytes) from " + session.getUserName()
+                    + (resumed > 0 ? ", resuming after chunk " + resumed : ""));
+        } catch (IOException e) {
+            logSink.error("Cannot save image " + session.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tells an uploader whether its file is needed and, if so, which of its chunks are already here.
+     *
+     * @param session The upload being probed.
+     * @param address The address of the uploader.
+     */
+    private void sendFileStatus(TransferSession session, SocketAddress address) {
+        ByteBuffer status = bufferPool.acquire();
+        try {
+            ChunkReceiver receiver = session.getReceiver();
+            FrameCodec.encodeFileStatus(status, session.getTransferId(), session.isSkipped(),
+                    receiver != null ? receiver.getFoundLast() : 0, receiver != null ? receiver.sackBitmap() : 0);
+            shardFor(address).send(status.flip(), address);
+        } catch (IOException e) {
+            logSink.error("Error answering upload probe: " + e.getMessage());
+        } finally {
+            bufferPool.release(status);
+        }
+    }
+
+    /**
+     * Moves a finished upload into the store, checking it against its announced hash, and forwards it.
+     *
+     * @param session The finished upload.
+     */
+    private void storeAndForward(TransferSession session) {
+        try {
+            if (!blobStore.commit(session.getFile(), session.getHash())) {
+                logSink.error("Image " + session.getFileName() + " from " + session.getUserName() + " does not match its hash, discarded");
+                return;
+            }
+            forwardImagesToClients(session.getFileName(), session.getUserName(), session.getHash());
+        } catch (IOException e) {
+            logSink.error("Cannot store image " + session.getFileName() + ": " + e.getMessage());
+        } finally {
+            if (session.isResumable()) {
+                blobStore.release(session.getHash());
+            }
+        }
+    }
+
+    /**
+     * Forwards a stored image to all connected clients. Large images are sent as a small preview,
+     * whose original each client can fetch when it wants it. The file is opened once and streamed to
+     * every recipient through the same channel, and each client gets its own virtual thread, so a slow
+     * client does not hold up the others. The senders are scoped to this call: the channel is closed
+     * once every one of them has finished, and if this thread is interrupted because the server is
+     * stopping, the senders still running are cancelled first. In multicast mode the image is sent
+     * once, to the group, instead.
+     *
+     * @param fileName  The name the image was uploaded under.
+     * @param userName  The username of the client sending the image.
+     * @param hash      The SHA-256 of the image.
+     */
+    private void forwardImagesToClients(String fileName, String userName, byte[] hash) {
+        File preview = null;
+        try {
+            preview = blobStore.previewFor(hash, PREVIEW_SIZE);
+        } catch (IOException e) {
+            logSink.warn("Cannot render a preview of " + fileName + ", sending the original: " + e.getMessage());
+        }
+        byte[] original = preview != null ? hash : null; // Announced with the preview, so the original can be fetched.
+        File imageFile = preview != null ? preview : blobStore.fileFor(hash);
+        try (FileChannel file = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ)) { // Shared by every recipient.
+            byte[] sentHash = preview != null ? ContentHash.of(file) : hash;
+            if (room != null) {
+                room.sendImage(imageFile, fileName, userName, sentHash, original); // One copy for the whole group.
+                return;
+            }
+            try (ExecutorService senders = Executors.newThreadPerTaskExecutor(transferThreads)) {
+                for (ClientRegistry.Client client : clients.clients()) {
+                    senders.execute(() -> forwardImageToClient(file, fileName, userName, sentHash, original, client));
+                }
+            } // Waits for the last recipient; cancels them all if interrupted.
+        } catch (Exception e) {
+            logSink.error("Error forwarding images to clients: " + e.getMessage());
+            e.printStackTrace(); // Print stack trace for debugging.
+        }
+    }
+
+    /**
+     * Sends an image to a single client from its own socket, so acknowledgments for this copy are
+     * tracked independently of every other recipient.
+     *
+     * @param file          The shared channel to read the file's data from.
+     * @param fileName      The name of the image file.
+     * @param userName      The username of the client sending the image.
+     * @param hash          The SHA-256 of the file being sent.
+     * @param original      The SHA-256 of the original image if the file is its preview, otherwise null.
+     * @param recipient     The client receiving the image.
+     */
+    private void forwardImageToClient(FileChannel file, String fileName, String userName, byte[] hash, byte[] original, ClientRegistry.Client recipient) {
+        InetAddress clientAddress = recipient.getAddress().getAddress();
+        int clientPort = recipient.getAddress().getPort();
+        try (DatagramSocket clientSocket = new DatagramSocket()) { // Create socket.
+            int transferId = ThreadLocalRandom.current().nextInt(); // Identifies this copy's chunks.
+
+            ByteBuffer fileMeta = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+            FrameCodec.encodeFileMeta(fileMeta, transferId, userName, fileName, file.size(), hash, original); // Announce username, filename, size, hash and transfer ID.
+
+            DatagramPacket fileStatPacket = new DatagramPacket(fileMeta.array(), fileMeta.position(), clientAddress, clientPort);
+            ByteBuffer status = probe(clientSocket, fileStatPacket, transferId); // Send file details and ask whether the content is needed.
+            if (status == null) {
+                logSink.warn("No answer from " + clientAddress + " " + clientPort + " to the announcement of " + fileName);
+            } else if ((FrameCodec.flags(status, 0) & FrameCodec.FLAG_HAVE) != 0) {
+                log("Client " + clientAddress + " " + clientPort + " already has " + fileName + ", not sent");
+            } else {
+                log("File sent to " + clientAddress + " " + clientPort);
+                sendFile(clientSocket, file, clientAddress, clientPort, transferId, recipient.getRtt(),
+                        FrameCodec.sequence(status, 0), FrameCodec.ackBitmap(status, 0)); // Send the content the client lacks.
+            }
+        } catch (Exception e) {
+            logSink.error("Error forwarding image to " + clientAddress + " " + clientPort + ": " + e.getMessage());
+            e.printStackTrace(); // Print stack trace for debugging.
+        }
+    }
+
+    /**
+     * Sends the original of a preview to the client that asked for it.
+     *
+     * @param hash     The SHA-256 of the original.
+     * @param userName The username of the client that sent the image.
+     * @param fileName The name of the image file.
+     * @param address  The address of the client asking.
+     */
+    private void sendOriginal(byte[] hash, String userName, String fileName, InetSocketAddress address) {
+        ClientRegistry.Client recipient = clients.get(address);
+        if (recipient == null || !blobStore.contains(hash)) {
+            logSink.warn("Cannot send original of " + fileName + " to " + address + ": unknown client or image");
+            return;
+        }
+        try (FileChannel file = FileChannel.open(blobStore.fileFor(hash).toPath(), StandardOpenOption.READ)) {
+            forwardImageToClient(file, fileName, userName, hash, null, recipient);
+        } catch (IOException e) {
+            logSink.error("Error sending original of " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Announces an image to a client and waits for its FILE_STATUS reply, repeating the announcement a
+     * few times if it goes unanswered.
+     *
+     * @param socket     The socket of this transfer, which the reply is addressed to.
+     * @param fileMeta   The FILE_META packet announcing the image.
+     * @param transferId The transfer ID of this copy.
+     * @return The FILE_STATUS frame the client answered with, or null if it never answered.
+     * @throws IOException If the socket fails.
+     */
+    private static ByteBuffer probe(DatagramSocket socket, DatagramPacket fileMeta, int transferId) throws IOException {
+        byte[] reply = new byte[FrameCodec.MAX_DATAGRAM];
+        DatagramPacket replyPacket = new DatagramPacket(reply, reply.length);
+        socket.setSoTimeout(PROBE_TIMEOUT);
+        for (int attempt = 0; attempt < PROBE_ATTEMPTS; attempt++) {
+            socket.send(fileMeta);
+            long deadline = System.currentTimeMillis() + PROBE_TIMEOUT;
+            try {
+                while (System.currentTimeMillis() < deadline) {
+                    socket.receive(replyPacket);
+                    ByteBuffer frame = ByteBuffer.wrap(reply, 0, replyPacket.getLength());
+                    if (FrameCodec.isValid(frame, 0) && FrameCodec.type(frame, 0) == FrameCodec.FILE_STATUS
+                            && FrameCodec.transferId(frame, 0) == transferId) {
+                        return frame;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Announcement or reply lost; announce again.
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Saves a chunk of an upload. Chunks arriving out of order are buffered until the gap before them
+     * is filled, and every packet is answered with a selective acknowledgment. A PARITY frame rebuilds
+     * a lost chunk if it is the only one missing from its group. Once the last chunk is written, the
+     * image is forwarded to the clients.
+     *
+     * @param session  The upload the chunk belongs to.
+     * @param datagram The CHUNK or PARITY frame.
+     * @param address  The address of the uploader.
+     */
+    private void receiveChunk(TransferSession session, ByteBuffer datagram, SocketAddress address) {
+        ChunkReceiver receiver = session.getReceiver();
+        if (receiver == null) {
+            return; // The target file could not be opened.
+        }
+        try {
+            session.touch();
+            boolean isNew;
+            if (FrameCodec.type(datagram, 0) == FrameCodec.PARITY) {
+                isNew = receiver.acceptParity(datagram, 0); // New if it rebuilt a lost chunk.
+                if (isNew) {
+                    logSink.count(LogSink.Counter.RECOVERED);
+                }
+            } else {
+                isNew = receiver.accept(datagram, 0);
+                if (!isNew) {
+                    logSink.count(LogSink.Counter.DUPLICATES);
+                }
+            }
+            sendAck(receiver, address); // Report everything received so far.
+
+            if (isNew && receiver.isComplete()) {
+                session.close();
+                log("Image received");
+                transferPool.execute(() -> storeAndForward(session));
+            } else if (isNew) {
+                session.checkpoint();
+            }
+        } catch (IOException e) {
+            logSink.error("Error forwarding: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes finished uploads once their linger period is over, and abandons uploads whose sender
+     * has gone quiet.
+     */
+    private void sweepSessions() {
+        uploadSessions.forEach((key, session) -> {
+            if (session.isComplete() && session.idleTime() > SESSION_LINGER) {
+                uploadSessions.remove(key);
+            } else if (!session.isComplete() && session.idleTime() > UPLOAD_IDLE_TIMEOUT) {
+                uploadSessions.remove(key);
+                workerFor(key.getAddress()).execute(() -> abandonUpload(session)); // Close on the thread that writes to it.
+                logSink.warn("Upload from " + key + " stalled, no chunk received for " + UPLOAD_IDLE_TIMEOUT + " ms");
+            }
+        });
+    }
+
+    /**
+     * Closes a stalled upload, keeping what was received of it for the next upload of the same
+     * content to resume, or deleting it if the upload could not resume anyway.
+     *
+     * @param session The upload to abandon.
+     */
+    private void abandonUpload(TransferSession session) {
+        session.suspend();
+        if (session.isResumable()) {
+            blobStore.release(session.getHash());
+        }
+    }
+
+    /**
+     * Deletes the partial uploads that were never resumed and are too old to be.
+     */
+    private void sweepPartials() {
+        try {
+            blobStore.sweepPartials();
+        } catch (IOException e) {
+            logSink.warn("Cannot sweep partial uploads: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Evicts clients that have stopped sending heartbeats, freeing their usernames.
+     */
+    private void evictClients() {
+        for (ClientRegistry.Client client : clients.evictExpired(CLIENT_LEASE)) {
+            shardFor(client.getAddress()).getTexts().forget(client.getAddress());
+            logSink.warn("Client " + client.getUserName() + " at " + client.getAddress() + " evicted, no heartbeat for "
+                    + CLIENT_LEASE + " ms");
+        }
+    }
+
+    /**
+     * Sends a selective acknowledgment describing every chunk received so far.
+     *
+     * @param receiver The ChunkReceiver tracking the transfer.
+     * @param address  The address of the sender.
+     */
+    private void sendAck(ChunkReceiver receiver, SocketAddress address) {
+        ByteBuffer ackPacket = bufferPool.acquire();
+        try {
+            receiver.ack(ackPacket); // Cumulative sequence number plus SACK bitmap.
+            shardFor(address).send(ackPacket.flip(), address); // Send the acknowledgment packet to the sender.
+            logSink.count(LogSink.Counter.ACKS_SENT);
+        } catch (Exception e) {
+            logSink.error("Error forwarding: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            bufferPool.release(ackPacket);
+        }
+    }
+
+    /**
+     * Sends file data in chunks over a UDP connection, keeping a window of chunks in flight.
+     *
+     * @param socket          the UDP socket to use for sending.
+     * @param file            the channel to read the file's data from.
+     * @param address         the client's IP address.
+     * @param port            the client's port.
+     * @param transferId      the transfer ID announced to the client.
+     * @param rtt             the round-trip estimate for the client.
+     * @param received        the client already has every chunk up to this sequence number.
+     * @param receivedBitmap  the other chunks the client already has, as in an acknowledgment.
+     */
+    private void sendFile(DatagramSocket socket, FileChannel file, InetAddress address, int port, int transferId, RttEstimator rtt,
+                          int received, long receivedBitmap) {
+        try {
+            log("Sent file to: " + address + " " + port);
+            new ChunkSender(socket, address, port, transferId, rtt, logSink).send(file, received, receivedBitmap);
+        } catch (Exception e) {
+            logSink.error("Error forwarding: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Logs an informational message.
+     *
+     * @param message The message to be reported.
+     */
+    private void log(String message) {
+        logSink.info(message);
+    }
+
+    /**
+     * Takes the messages logged since the last frame out of the sink and hands them to every
+     * listener as one batch.
+     */
+    private void dispatchLog() {
+        List<LogSink.Entry> batch = new ArrayList<>();
+        logSink.drain(LOG_BATCH_SIZE, batch::add);
+        if (batch.isEmpty()) {
+            return;
+        }
+        for (RelayListener listener : listeners) {
+            try {
+                listener.onLog(batch);
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // A faulty listener must not stop the dispatcher.
+            }
+        }
+    }
+}
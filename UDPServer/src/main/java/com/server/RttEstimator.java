@@ -0,0 +1,66 @@
+package com.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round-trip time estimate for one peer, used to time retransmissions (RFC 6298).
+ *
+ * Keeps a smoothed RTT and an RTT variance, and derives the retransmission timeout from them:
+ * {@code RTO = SRTT + max(G, 4 * RTTVAR)}. Each timeout doubles the RTO until a fresh sample arrives.
+ * Callers must follow Karn's rule and only sample chunks that were sent exactly once. The bounds are
+ * tighter than the RFC's, which targets WAN links and would make loopback transfers crawl.
+ * One estimator may be shared by several transfers to the same peer.
+ */
+public class RttEstimator {
+    private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(200); // Timeout before the first sample.
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(5); // Floor, so scheduler jitter is not taken for loss.
+    private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(5); // Ceiling for backoff.
+    private static final long CLOCK_GRANULARITY = TimeUnit.MILLISECONDS.toNanos(1); // Resolution of socket timeouts.
+
+    private long srtt; // Smoothed round-trip time, in nanoseconds.
+    private long rttvar; // Round-trip time variance, in nanoseconds.
+    private long rto = INITIAL_RTO; // Current retransmission timeout, in nanoseconds.
+    private boolean hasSample; // Whether srtt and rttvar have been initialised.
+
+    /**
+     * Feeds in a round-trip measurement taken from a chunk that was never retransmitted.
+     *
+     * @param rttNanos The time between sending the chunk and receiving its acknowledgment.
+     */
+    public synchronized void sample(long rttNanos) {
+        if (!hasSample) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+            hasSample = true;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rttNanos)) / 4; // beta = 1/4
+            srtt = (7 * srtt + rttNanos) / 8; // alpha = 1/8
+        }
+        rto = clamp(srtt + Math.max(CLOCK_GRANULARITY, 4 * rttvar)); // Also ends any backoff.
+    }
+
+    /**
+     * Doubles the timeout after a retransmission timer expired.
+     */
+    public synchronized void backoff() {
+        rto = clamp(rto * 2);
+    }
+
+    /**
+     * @return The current retransmission timeout, in nanoseconds.
+     */
+    public synchronized long getRto() {
+        return rto;
+    }
+
+    /**
+     * @return The smoothed round-trip time in nanoseconds, or 0 before the first sample.
+     */
+    public synchronized long getSrtt() {
+        return srtt;
+    }
+
+    private static long clamp(long value) {
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, value));
+    }
+}
@@ -0,0 +1,94 @@
+package com.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Sends datagrams through a non-blocking channel without losing them to a full socket buffer.
+ *
+ * A non-blocking send returns 0 instead of waiting when the socket's send buffer is full. The
+ * datagram is then copied to a backlog and the channel's key asks its selector for OP_WRITE; the
+ * I/O thread sends the backlog in order as soon as the buffer drains, and stops asking once it is
+ * empty. While a backlog exists, new datagrams queue behind it so they keep their order. Only if the
+ * backlog reaches {@link #MAX_BACKLOG} is a datagram dropped, and then it is counted.
+ */
+public class SendQueue {
+    private static final int MAX_BACKLOG = 4096; // Datagrams waiting for the buffer before new ones are dropped.
+
+    /**
+     * A datagram waiting for room in the send buffer.
+     */
+    private static final class Pending {
+        private final ByteBuffer datagram; // Private copy of the datagram.
+        private final SocketAddress recipient; // Where it goes.
+
+        Pending(ByteBuffer datagram, SocketAddress recipient) {
+            this.datagram = datagram;
+            this.recipient = recipient;
+        }
+    }
+
+    private final DatagramChannel channel; // Non-blocking channel the datagrams are sent through.
+    private final SelectionKey key; // The channel's registration with its I/O thread's selector.
+    private final LogSink logSink; // Where dropped datagrams are counted.
+    private final Queue<Pending> backlog = new ArrayDeque<>(); // Datagrams waiting for the buffer, oldest first; guarded by this.
+
+    /**
+     * Creates a queue for a registered channel.
+     *
+     * @param channel The non-blocking channel to send through.
+     * @param key     The channel's selection key, whose interest set gains OP_WRITE while a backlog exists.
+     * @param logSink Where dropped datagrams are counted.
+     */
+    public SendQueue(DatagramChannel channel, SelectionKey key, LogSink logSink) {
+        this.channel = channel;
+        this.key = key;
+        this.logSink = logSink;
+    }
+
+    /**
+     * Sends a datagram now if the socket buffer has room, otherwise queues a copy of it.
+     *
+     * @param datagram  The datagram, from its position to its limit. Its content is copied if queued.
+     * @param recipient The address to send it to.
+     * @throws IOException If the channel fails.
+     */
+    public synchronized void send(ByteBuffer datagram, SocketAddress recipient) throws IOException {
+        if (backlog.isEmpty() && channel.send(datagram, recipient) > 0) {
+            return;
+        }
+        if (backlog.size() >= MAX_BACKLOG) {
+            logSink.count(LogSink.Counter.SENDS_DROPPED);
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+        copy.put(datagram).flip();
+        backlog.offer(new Pending(copy, recipient));
+        if (backlog.size() == 1) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            key.selector().wakeup();
+        }
+    }
+
+    /**
+     * Sends as much of the backlog as the socket buffer takes. Called by the I/O thread when the
+     * selector reports the channel writable.
+     *
+     * @throws IOException If the channel fails.
+     */
+    public synchronized void flush() throws IOException {
+        Pending pending;
+        while ((pending = backlog.peek()) != null) {
+            if (channel.send(pending.datagram, pending.recipient) == 0) {
+                return; // Still full; wait for the next OP_WRITE.
+            }
+            backlog.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+}
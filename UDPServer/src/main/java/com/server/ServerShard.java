@@ -0,0 +1,147 @@
+package com.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * One receive shard of the server: a channel bound to the server's port, the selector its I/O
+ * thread waits on, and the messages waiting to be fanned out to the shard's clients.
+ *
+ * With SO_REUSEPORT every shard binds the same port and the kernel spreads incoming datagrams over
+ * them by source address, so all of a client's datagrams reach the same shard, in order, and
+ * receiving runs on as many cores as there are shards. Outgoing messages are handed to every shard
+ * through a lock-free queue and sent by the shard's own thread to the clients assigned to it, so
+ * fan-out runs on every core too instead of on the thread that received the message. Everything the
+ * shard sends goes through its {@link SendQueue}, so a full socket buffer delays datagrams instead
+ * of dropping them.
+ */
+public class ServerShard {
+    private final int index; // Position of this shard among the server's shards.
+    private final DatagramChannel channel; // Non-blocking channel bound to the server's port.
+    private final Selector selector; // Wakes the shard's I/O thread for datagrams and queued messages.
+    private final SendQueue sendQueue; // Sends through the channel, holding datagrams back while its buffer is full.
+    private final TextCoalescer texts; // Packs bursts of messages to the shard's clients into shared datagrams.
+    private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>(); // Messages waiting to be fanned out.
+
+    /**
+     * Opens a shard's channel and binds it.
+     *
+     * @param index       The position of the shard.
+     * @param port        The port to bind.
+     * @param reusePort   Whether other shards bind the same port.
+     * @param flusher     The executor that sends coalesced messages when their window closes.
+     * @param windowNanos How long messages wait for others to the same client, in nanoseconds.
+     * @param logSink     Where send errors are reported.
+     * @throws IOException If the channel cannot be opened or bound.
+     */
+    public ServerShard(int index, int port, boolean reusePort, ScheduledExecutorService flusher, long windowNanos, LogSink logSink) throws IOException {
+        this.index = index;
+        channel = DatagramChannel.open();
+        try {
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false); // The I/O loop only reads what the selector reports as ready.
+            selector = Selector.open();
+            sendQueue = new SendQueue(channel, channel.register(selector, SelectionKey.OP_READ), logSink);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        texts = new TextCoalescer(sendQueue, flusher, windowNanos, logSink);
+    }
+
+    /**
+     * @return Whether this platform lets several channels bind the same port.
+     * @throws IOException If no channel can be opened to find out.
+     */
+    public static boolean canReusePort() throws IOException {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    /**
+     * Queues a message for every client of this shard and wakes the shard's thread to send it.
+     *
+     * @param frame The frame, which must not be modified afterwards. Shards share it.
+     */
+    public void broadcast(ByteBuffer frame) {
+        outbox.offer(frame);
+        selector.wakeup();
+    }
+
+    /**
+     * Sends the queued messages to the shard's clients. Called by the shard's I/O thread only.
+     *
+     * @param recipients The clients assigned to this shard.
+     */
+    public void sendQueued(Collection<ClientRegistry.Client> recipients) {
+        ByteBuffer frame;
+        while ((frame = outbox.poll()) != null) {
+            for (ClientRegistry.Client client : recipients) {
+                texts.send(client.getAddress(), frame.duplicate());
+            }
+        }
+    }
+
+    /**
+     * Sends a datagram through the shard's channel, or queues it until the socket buffer has room.
+     *
+     * @param datagram  The datagram, from its position to its limit. Its content is copied if queued.
+     * @param recipient The address to send it to.
+     * @throws IOException If the channel fails.
+     */
+    public void send(ByteBuffer datagram, SocketAddress recipient) throws IOException {
+        sendQueue.send(datagram, recipient);
+    }
+
+    /**
+     * Closes the selector and the channel, which ends the shard's I/O thread.
+     *
+     * @throws IOException If the channel cannot be closed.
+     */
+    public void close() throws IOException {
+        selector.close();
+        channel.close();
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    public SendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    public TextCoalescer getTexts() {
+        return texts;
+    }
+
+    /**
+     * @return The local port the channel is bound to.
+     * @throws IOException If the channel is closed.
+     */
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+}
@@ -0,0 +1,111 @@
+package com.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs bursts of small frames for the same recipient into shared datagrams.
+ *
+ * The first frame queued for a recipient opens a short window; frames queued for that recipient
+ * before the window closes are appended to the same datagram, which is sent when the window closes
+ * or as soon as the next frame would not fit. A quiet chat pays at most one window of latency, and
+ * a busy one sends a fraction of the packets. Receivers read frames one after another until the end
+ * of the datagram.
+ */
+public class TextCoalescer {
+    /**
+     * Frames waiting to be sent to one recipient.
+     */
+    private static final class Batch {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(FrameCodec.MAX_DATAGRAM); // Frames queued so far.
+        private boolean scheduled; // Whether a flush is pending for the open window.
+    }
+
+    private final SendQueue sendQueue; // Sends every batch, holding it back while the socket buffer is full.
+    private final ScheduledExecutorService flusher; // Closes the windows.
+    private final long windowNanos; // How long a batch stays open after its first frame.
+    private final LogSink logSink; // Where send errors are reported.
+    private final Map<SocketAddress, Batch> batches = new ConcurrentHashMap<>(); // Open batches by recipient.
+
+    /**
+     * Creates a coalescer sending through a shared channel.
+     *
+     * @param sendQueue   The queue of the channel to send datagrams through.
+     * @param flusher     The executor that sends batches when their window closes.
+     * @param windowNanos How long frames wait for company, in nanoseconds.
+     * @param logSink     Where send errors are reported.
+     */
+    public TextCoalescer(SendQueue sendQueue, ScheduledExecutorService flusher, long windowNanos, LogSink logSink) {
+        this.sendQueue = sendQueue;
+        this.flusher = flusher;
+        this.windowNanos = windowNanos;
+        this.logSink = logSink;
+    }
+
+    /**
+     * Queues a frame for a recipient.
+     *
+     * @param recipient The address to send the frame to.
+     * @param frame     The frame, from its position to its limit. Its content is copied.
+     */
+    public void send(SocketAddress recipient, ByteBuffer frame) {
+        Batch batch = batches.computeIfAbsent(recipient, address -> new Batch());
+        synchronized (batch) {
+            if (batch.buffer.remaining() < frame.remaining()) {
+                flush(recipient, batch); // Full: send what is there and start a new datagram.
+            }
+            batch.buffer.put(frame);
+            if (!batch.scheduled) {
+                batch.scheduled = true;
+                flusher.schedule(() -> {
+                    synchronized (batch) {
+                        batch.scheduled = false;
+                        flush(recipient, batch);
+                    }
+                }, windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Sends everything still queued, for example before the server stops.
+     */
+    public void flushAll() {
+        batches.forEach((recipient, batch) -> {
+            synchronized (batch) {
+                flush(recipient, batch);
+            }
+        });
+    }
+
+    /**
+     * Drops the batch of a recipient that has gone away.
+     *
+     * @param recipient The address of the recipient.
+     */
+    public void forget(SocketAddress recipient) {
+        batches.remove(recipient);
+    }
+
+    /**
+     * Sends a batch, if it holds anything. The caller must hold the batch's lock.
+     */
+    private void flush(SocketAddress recipient, Batch batch) {
+        if (batch.buffer.position() == 0) {
+            return;
+        }
+        batch.buffer.flip();
+        try {
+            sendQueue.send(batch.buffer, recipient);
+        } catch (IOException e) {
+            logSink.error("Error sending messages to " + recipient + ": " + e.getMessage());
+        } finally {
+            batch.buffer.clear();
+        }
+    }
+}
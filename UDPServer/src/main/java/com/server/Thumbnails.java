@@ -0,0 +1,67 @@
+package com.server;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders downscaled previews of received images, so clients can show an image long before its
+ * full-resolution original would have arrived.
+ */
+public final class Thumbnails {
+    private Thumbnails() {
+    }
+
+    /**
+     * Writes a JPEG preview of an image, scaled to fit a square box with its aspect ratio kept.
+     * Images that are not smaller than the box are not previewed, and neither are files that are not
+     * images Java can decode.
+     *
+     * @param source  The image file.
+     * @param target  The file the preview is written to.
+     * @param maxSize The side of the box, in pixels.
+     * @return true if a preview was written.
+     * @throws IOException If the source cannot be read or the preview cannot be written.
+     */
+    public static boolean render(File source, File target, int maxSize) throws IOException {
+        BufferedImage image = ImageIO.read(source);
+        if (image == null || Math.max(image.getWidth(), image.getHeight()) <= maxSize) {
+            return false;
+        }
+        double scale = (double) maxSize / Math.max(image.getWidth(), image.getHeight());
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+        // Halve in steps: a single bilinear pass over a large reduction skips most source pixels and aliases.
+        BufferedImage current = image;
+        int stepWidth = image.getWidth();
+        int stepHeight = image.getHeight();
+        do {
+            stepWidth = Math.max(width, stepWidth / 2);
+            stepHeight = Math.max(height, stepHeight / 2);
+            current = scale(current, stepWidth, stepHeight);
+        } while (stepWidth != width || stepHeight != height);
+        return ImageIO.write(current, "jpg", target);
+    }
+
+    /**
+     * Draws an image at a new size onto an opaque RGB canvas, which is what the JPEG writer expects.
+     * Transparent areas become white.
+     */
+    private static BufferedImage scale(BufferedImage image, int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+}
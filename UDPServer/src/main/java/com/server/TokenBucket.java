@@ -0,0 +1,58 @@
+package com.server;
+
+/**
+ * Token-bucket pacer. Tokens are bytes, refilled continuously at the configured rate up to the
+ * bucket's capacity, so a sender can burst at most {@code capacity} bytes and otherwise spreads its
+ * packets evenly instead of releasing a whole window back to back. Not thread-safe; each sender
+ * owns its bucket.
+ */
+public class TokenBucket {
+    private long capacity; // Largest burst, in bytes.
+    private double rate = Double.POSITIVE_INFINITY; // Refill rate in bytes per nanosecond; unlimited until set.
+    private double tokens; // Bytes that may be sent right now.
+    private long lastRefill = System.nanoTime(); // When tokens were last added.
+
+    /**
+     * Creates a full bucket with no rate limit.
+     *
+     * @param capacity The largest burst, in bytes.
+     */
+    public TokenBucket(long capacity) {
+        this.capacity = capacity;
+        this.tokens = capacity;
+    }
+
+    /**
+     * Changes the refill rate and the largest burst.
+     *
+     * @param bytesPerSecond The new rate.
+     * @param capacity       The new largest burst, in bytes.
+     */
+    public void setRate(double bytesPerSecond, long capacity) {
+        refill();
+        this.rate = bytesPerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = Math.min(tokens, capacity);
+    }
+
+    /**
+     * Takes tokens for a packet if enough are available.
+     *
+     * @param bytes The size of the packet.
+     * @return 0 if the packet may be sent now, otherwise the nanoseconds until it may be.
+     */
+    public long tryConsume(int bytes) {
+        refill();
+        if (tokens >= bytes) {
+            tokens -= bytes;
+            return 0;
+        }
+        return (long) Math.ceil((bytes - tokens) / rate);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Double.isInfinite(rate) ? capacity : Math.min(capacity, tokens + (now - lastRefill) * rate);
+        lastRefill = now;
+    }
+}
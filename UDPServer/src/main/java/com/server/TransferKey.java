@@ -0,0 +1,53 @@
+package com.server;
+
+import java.net.SocketAddress;
+import java.util.Objects;
+
+/**
+ * Identifies an upload by the address it comes from and the transfer ID chosen by the uploader.
+ */
+public class TransferKey {
+    private final SocketAddress address; // Address the chunks are sent from.
+    private final int transferId; // ID announced in the file details and carried by every chunk.
+
+    /**
+     * Creates a key for an upload.
+     *
+     * @param address    The address the chunks are sent from.
+     * @param transferId The transfer ID carried by every chunk.
+     */
+    public TransferKey(SocketAddress address, int transferId) {
+        this.address = address;
+        this.transferId = transferId;
+    }
+
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TransferKey)) {
+            return false;
+        }
+        TransferKey other = (TransferKey) o;
+        return transferId == other.transferId && address.equals(other.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(address, transferId);
+    }
+
+    @Override
+    public String toString() {
+        return address + "#" + transferId;
+    }
+}
@@ -0,0 +1,157 @@
+package com.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests reassembly of a chunk stream, and the rebuilding of lost chunks from parity.
+ */
+class ChunkReceiverTest {
+    private static final int TRANSFER_ID = 7;
+    private static final int GROUP = 5; // Chunks per parity at the loss rate the encoder is created with.
+    private static final long FILE_SIZE = (long) (GROUP - 1) * ChunkSender.CHUNK_SIZE + 100; // The last chunk is short.
+
+    @TempDir
+    Path directory;
+
+    private final byte[] content = randomContent(FILE_SIZE);
+
+    @Test
+    void rebuildsTheLostChunkAtEveryPositionOfAGroup() throws IOException {
+        for (int lost = 1; lost <= GROUP; lost++) {
+            ByteBuffer parity = parityOfAllChunks();
+            try (RandomAccessFile file = newFile("lost-" + lost)) {
+                ChunkReceiver receiver = new ChunkReceiver(file.getChannel(), TRANSFER_ID, FILE_SIZE);
+                for (int sequence = 1; sequence <= GROUP; sequence++) {
+                    if (sequence != lost) {
+                        assertTrue(receiver.accept(chunk(sequence), 0));
+                    }
+                }
+                assertFalse(receiver.isComplete());
+
+                assertTrue(receiver.acceptParity(parity, 0), "chunk " + lost);
+                assertTrue(receiver.isComplete(), "chunk " + lost);
+                assertArrayEquals(content, readAll(file.getChannel()), "chunk " + lost);
+            }
+        }
+    }
+
+    @Test
+    void reportsRebuiltChunksInTheNextAck() throws IOException {
+        try (RandomAccessFile file = newFile("ack")) {
+            ChunkReceiver receiver = new ChunkReceiver(file.getChannel(), TRANSFER_ID, FILE_SIZE);
+            for (int sequence = 2; sequence <= GROUP; sequence++) {
+                receiver.accept(chunk(sequence), 0);
+            }
+            receiver.acceptParity(parityOfAllChunks(), 0);
+
+            ByteBuffer ack = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+            receiver.ack(ack);
+            assertEquals(GROUP, FrameCodec.sequence(ack, 0));
+            assertTrue((FrameCodec.flags(ack, 0) & FrameCodec.FLAG_RECOVERED) != 0);
+            ack.clear();
+            receiver.ack(ack);
+            assertEquals(0, FrameCodec.flags(ack, 0) & FrameCodec.FLAG_RECOVERED);
+        }
+    }
+
+    @Test
+    void keepsParityUntilOnlyOneChunkOfItsGroupIsMissing() throws IOException {
+        try (RandomAccessFile file = newFile("two")) {
+            ChunkReceiver receiver = new ChunkReceiver(file.getChannel(), TRANSFER_ID, FILE_SIZE);
+            for (int sequence = 1; sequence <= GROUP; sequence++) {
+                if (sequence != 2 && sequence != 4) {
+                    receiver.accept(chunk(sequence), 0);
+                }
+            }
+            assertFalse(receiver.acceptParity(parityOfAllChunks(), 0)); // Two missing: nothing to rebuild yet.
+            assertFalse(receiver.isComplete());
+
+            assertTrue(receiver.accept(chunk(4), 0)); // Resent; chunk 2 is rebuilt from the parity kept.
+            assertTrue(receiver.isComplete());
+            assertArrayEquals(content, readAll(file.getChannel()));
+        }
+    }
+
+    @Test
+    void ignoresParityOfACompleteGroup() throws IOException {
+        try (RandomAccessFile file = newFile("complete")) {
+            ChunkReceiver receiver = new ChunkReceiver(file.getChannel(), TRANSFER_ID, FILE_SIZE);
+            for (int sequence = 1; sequence <= GROUP; sequence++) {
+                receiver.accept(chunk(sequence), 0);
+            }
+            assertFalse(receiver.acceptParity(parityOfAllChunks(), 0));
+            assertArrayEquals(content, readAll(file.getChannel()));
+        }
+    }
+
+    @Test
+    void dropsDuplicatesAndChunksOfOtherTransfers() throws IOException {
+        try (RandomAccessFile file = newFile("duplicates")) {
+            ChunkReceiver receiver = new ChunkReceiver(file.getChannel(), TRANSFER_ID, FILE_SIZE);
+            assertTrue(receiver.accept(chunk(3), 0));
+            assertFalse(receiver.accept(chunk(3), 0));
+            ByteBuffer other = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+            FrameCodec.encodeChunk(other, TRANSFER_ID + 1, 1, false, ByteBuffer.wrap(content, 0, ChunkSender.CHUNK_SIZE));
+            assertFalse(receiver.accept(other.flip(), 0));
+            assertEquals(0, receiver.getFoundLast());
+            assertEquals(0b10, receiver.sackBitmap()); // Chunk 3 is bit 1 past the cumulative point.
+        }
+    }
+
+    /**
+     * @return The PARITY frame the encoder sends for the chunks of the file, which form one group.
+     */
+    private ByteBuffer parityOfAllChunks() {
+        FecEncoder encoder = new FecEncoder(TRANSFER_ID, 0.25 / GROUP);
+        boolean complete = false;
+        for (int sequence = 1; sequence <= GROUP; sequence++) {
+            complete = encoder.add(chunk(sequence), 0);
+        }
+        assertTrue(complete);
+        ByteBuffer parity = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+        encoder.writeParity(parity);
+        return parity;
+    }
+
+    private ByteBuffer chunk(int sequence) {
+        int offset = (sequence - 1) * ChunkSender.CHUNK_SIZE;
+        int length = (int) Math.min(ChunkSender.CHUNK_SIZE, FILE_SIZE - offset);
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+        FrameCodec.encodeChunk(frame, TRANSFER_ID, sequence, offset + length == FILE_SIZE, ByteBuffer.wrap(content, offset, length));
+        return frame.flip();
+    }
+
+    private RandomAccessFile newFile(String name) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(Files.createFile(directory.resolve(name)).toFile(), "rw");
+        file.setLength(FILE_SIZE);
+        return file;
+    }
+
+    private static byte[] readAll(FileChannel channel) throws IOException {
+        ByteBuffer all = ByteBuffer.allocate((int) channel.size());
+        while (all.hasRemaining() && channel.read(all, all.position()) >= 0) {
+            // Positional reads until the buffer is full.
+        }
+        return all.array();
+    }
+
+    private static byte[] randomContent(long size) {
+        byte[] bytes = new byte[(int) size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
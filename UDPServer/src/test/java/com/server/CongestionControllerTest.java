@@ -0,0 +1,69 @@
+package com.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests slow start, congestion avoidance and the reaction to losses.
+ */
+class CongestionControllerTest {
+    @Test
+    void doublesTheWindowEveryRoundTripInSlowStart() {
+        CongestionController controller = new CongestionController(1000);
+        assertEquals(4, controller.window());
+        assertTrue(controller.inSlowStart());
+        controller.onAck(4);
+        assertEquals(8, controller.window());
+        controller.onAck(8);
+        assertEquals(16, controller.window());
+    }
+
+    @Test
+    void neverGrowsPastTheReceiverWindow() {
+        CongestionController controller = new CongestionController(10);
+        controller.onAck(100);
+        assertEquals(10, controller.window());
+    }
+
+    @Test
+    void halvesOncePerWindowOfData() {
+        CongestionController controller = new CongestionController(1000);
+        controller.onAck(28); // Window of 32.
+        controller.onLoss(5, 32, false);
+        assertEquals(16, controller.window());
+        assertFalse(controller.inSlowStart());
+
+        controller.onLoss(6, 40, false); // Same burst: sent before the cut.
+        controller.onLoss(32, 40, false);
+        assertEquals(16, controller.window());
+
+        controller.onLoss(33, 48, false); // Sent after the cut: a new congestion event.
+        assertEquals(8, controller.window());
+    }
+
+    @Test
+    void growsByAboutOneChunkPerWindowInCongestionAvoidance() {
+        CongestionController controller = new CongestionController(1000);
+        controller.onAck(12); // Window of 16.
+        controller.onLoss(1, 16, false); // Window and threshold of 8.
+        controller.onAck(8);
+        assertEquals(8, controller.window()); // Each ack adds 1/cwnd, a little less than a chunk per window.
+        controller.onAck(2);
+        assertEquals(9, controller.window());
+    }
+
+    @Test
+    void collapsesWhenARetransmissionIsLost() {
+        CongestionController controller = new CongestionController(1000);
+        controller.onAck(12); // Window of 16.
+        controller.onLoss(3, 16, true);
+        assertEquals(1, controller.window());
+        assertTrue(controller.inSlowStart()); // Climbs back to half of 16 exponentially.
+        controller.onAck(7);
+        assertEquals(8, controller.window());
+        assertFalse(controller.inSlowStart());
+    }
+}
@@ -0,0 +1,102 @@
+package com.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the grouping of chunks and the parity the encoder computes for them.
+ */
+class FecEncoderTest {
+    private static final int TRANSFER_ID = 3;
+
+    @Test
+    void sendsNoParityOnACleanLink() {
+        FecEncoder encoder = new FecEncoder(TRANSFER_ID, 0);
+        for (int sequence = 1; sequence <= 100; sequence++) {
+            assertFalse(encoder.add(chunk(sequence, false, 10), 0));
+        }
+        assertFalse(encoder.endGroup());
+    }
+
+    @Test
+    void shrinksGroupsAsLossGrows() {
+        assertEquals(32, groupLength(new FecEncoder(TRANSFER_ID, 1.0 / 200)));
+        assertEquals(10, groupLength(new FecEncoder(TRANSFER_ID, 0.025)));
+        assertEquals(4, groupLength(new FecEncoder(TRANSFER_ID, 0.5)));
+
+        FecEncoder learning = new FecEncoder(TRANSFER_ID, 0.025);
+        for (int i = 0; i < 20; i++) {
+            learning.onLoss();
+        }
+        assertEquals(4, groupLength(learning));
+    }
+
+    @Test
+    void writesTheXorOfPayloadsPaddedToTheLongest() {
+        FecEncoder encoder = new FecEncoder(TRANSFER_ID, 0.5);
+        assertFalse(encoder.add(chunk(9, false, 6), 0));
+        assertFalse(encoder.add(chunk(10, false, 6), 0));
+        assertTrue(encoder.add(chunk(11, true, 3), 0)); // The last chunk ends the group early.
+
+        ByteBuffer parity = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+        encoder.writeParity(parity);
+        assertEquals(FrameCodec.PARITY, FrameCodec.type(parity, 0));
+        assertEquals(TRANSFER_ID, FrameCodec.transferId(parity, 0));
+        assertEquals(9, FrameCodec.sequence(parity, 0));
+        assertEquals(3, FrameCodec.groupSize(parity, 0));
+        byte[] payload = new byte[FrameCodec.payloadLength(parity, 0)];
+        parity.get(FrameCodec.payloadOffset(0), payload);
+        byte[] expected = new byte[6];
+        for (int sequence = 9; sequence <= 11; sequence++) {
+            for (int i = 0; i < (sequence == 11 ? 3 : 6); i++) {
+                expected[i] ^= fill(sequence, i);
+            }
+        }
+        assertArrayEquals(expected, payload);
+    }
+
+    @Test
+    void endsAGroupEarlyOnlyIfItHoldsChunks() {
+        FecEncoder encoder = new FecEncoder(TRANSFER_ID, 0.5);
+        assertFalse(encoder.endGroup());
+        encoder.add(chunk(1, false, 8), 0);
+        assertTrue(encoder.endGroup());
+        ByteBuffer parity = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+        encoder.writeParity(parity);
+        assertEquals(1, FrameCodec.groupSize(parity, 0));
+        assertFalse(encoder.endGroup());
+    }
+
+    /**
+     * @return The number of chunks the encoder puts in its next group.
+     */
+    private static int groupLength(FecEncoder encoder) {
+        for (int sequence = 1; sequence <= 64; sequence++) {
+            if (encoder.add(chunk(sequence, false, 4), 0)) {
+                encoder.writeParity(ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM));
+                return sequence;
+            }
+        }
+        return 0;
+    }
+
+    private static ByteBuffer chunk(int sequence, boolean last, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = fill(sequence, i);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.MAX_DATAGRAM);
+        FrameCodec.encodeChunk(frame, TRANSFER_ID, sequence, last, ByteBuffer.wrap(data));
+        return frame.flip();
+    }
+
+    private static byte fill(int sequence, int i) {
+        return (byte) (sequence * 31 + i * 7);
+    }
+}
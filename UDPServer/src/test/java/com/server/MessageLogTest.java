@@ -0,0 +1,262 @@
+package com.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests appending to and reading from the message log, across segments and index entries, and its
+ * recovery from a damaged tail.
+ */
+class MessageLogTest {
+    private static final int RECORD = 1024; // Bytes per record: the frame plus its 8-byte length and checksum.
+    private static final int FRAME = RECORD - 8; // Bytes per frame; four records fall between two index entries.
+    private static final int SMALL_SEGMENT = 8 * RECORD; // Eight messages per segment.
+    private static final int LARGE_SEGMENT = 256 * RECORD; // Larger than a read block.
+
+    @TempDir
+    Path directory;
+
+    private final LogSink logSink = new LogSink(64);
+
+    @Test
+    void readsBackWhatWasAppended() throws IOException {
+        MessageLog log = new MessageLog(directory, logSink);
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i, log.append(frame(i, 20 + i)));
+            }
+            assertEquals(10, log.end());
+            assertEquals(List.of(3, 4, 5), read(log, 3, 3));
+            assertEquals(List.of(8, 9), read(log, 8, 100));
+            assertEquals(List.of(), read(log, 10, 100));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void readsFromEveryOffsetAcrossSegmentsAndIndexEntries() throws IOException {
+        MessageLog log = new MessageLog(directory, logSink, SMALL_SEGMENT);
+        try {
+            for (int i = 0; i < 100; i++) {
+                log.append(frame(i, FRAME));
+            }
+            assertEquals(13, logFiles().size());
+            for (int from = 0; from < 100; from++) {
+                for (int max : new int[] {1, 4, 5, 9, 17, 200}) {
+                    assertEquals(expected(from, Math.min(max, 100 - from)), read(log, from, max), "from " + from + ", max " + max);
+                }
+            }
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void readsFromEveryOffsetOfALargeSegment() throws IOException {
+        MessageLog log = new MessageLog(directory, logSink, LARGE_SEGMENT);
+        try {
+            for (int i = 0; i < 300; i++) {
+                log.append(frame(i, 20 + i % 997)); // Records straddle the index entries at every possible distance.
+            }
+            for (int from = 0; from < 300; from++) {
+                assertEquals(List.of(from), read(log, from, 1), "from " + from);
+            }
+            assertEquals(expected(0, 300), read(log, 0, 300));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void reopensWhereItLeftOff() throws IOException {
+        MessageLog log = new MessageLog(directory, logSink, SMALL_SEGMENT);
+        for (int i = 0; i < 20; i++) {
+            log.append(frame(i, FRAME));
+        }
+        log.close();
+
+        log = new MessageLog(directory, logSink, SMALL_SEGMENT);
+        try {
+            assertEquals(20, log.end());
+            assertEquals(20, log.append(frame(20, FRAME)));
+            assertEquals(expected(0, 21), read(log, 0, 100));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void cutsATornRecordOffTheTail() throws IOException {
+        fill(10);
+        try (FileChannel last = FileChannel.open(lastLogFile(), StandardOpenOption.WRITE)) {
+            last.truncate(last.size() - 5); // A crash in the middle of the last record.
+        }
+
+        MessageLog log = new MessageLog(directory, logSink);
+        try {
+            assertEquals(9, log.end());
+            assertEquals(expected(0, 9), read(log, 0, 100));
+            assertEquals(9, log.append(frame(9, 30)));
+            assertEquals(expected(0, 10), read(log, 0, 100));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void cutsTheTailAtTheFirstCorruptRecord() throws IOException {
+        fill(10);
+        try (FileChannel last = FileChannel.open(lastLogFile(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = 7L * (8 + 30) + 8 + 10; // Inside the frame of message 7.
+            ByteBuffer one = ByteBuffer.allocate(1);
+            last.read(one, position);
+            one.put(0, (byte) ~one.get(0));
+            last.write(one.flip(), position);
+        }
+
+        MessageLog log = new MessageLog(directory, logSink);
+        try {
+            assertEquals(7, log.end());
+            assertEquals(expected(0, 7), read(log, 0, 100));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void cutsAGarbledLengthOffTheTail() throws IOException {
+        fill(10);
+        try (FileChannel last = FileChannel.open(lastLogFile(), StandardOpenOption.WRITE)) {
+            last.write(ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE).flip(), 9L * (8 + 30)); // Length of message 9.
+        }
+
+        MessageLog log = new MessageLog(directory, logSink);
+        try {
+            assertEquals(9, log.end());
+            assertEquals(expected(0, 9), read(log, 0, 100));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void dropsTheOldestSegments() throws IOException {
+        MessageLog log = new MessageLog(directory, logSink, SMALL_SEGMENT);
+        try {
+            for (int i = 0; i < 8 * 20; i++) {
+                log.append(frame(i, FRAME));
+            }
+            assertEquals(16, logFiles().size());
+            assertEquals(expected(32, 3), read(log, 0, 3)); // Messages of the 4 segments dropped are skipped.
+            assertEquals(expected(32, 3), read(log, 32, 3));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void keepsADroppedSegmentUntilItsReaderIsDone() throws IOException {
+        MessageLog log = new MessageLog(directory, logSink, LARGE_SEGMENT);
+        try {
+            for (int i = 0; i < 256; i++) {
+                log.append(frame(i, FRAME));
+            }
+            Path oldest = logFiles().get(0);
+            List<Integer> seen = new ArrayList<>();
+            int[] next = {256};
+            int count = log.read(0, 256, frame -> {
+                seen.add(frame.getInt(frame.position()));
+                if (seen.size() == 1) {
+                    try {
+                        for (int i = 0; i < 16 * 256; i++) {
+                            log.append(frame(next[0]++, FRAME)); // Rolls the segment being read off the log.
+                        }
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                    assertTrue(Files.exists(oldest));
+                }
+            });
+            assertEquals(256, count);
+            assertEquals(expected(0, 256), seen);
+            assertFalse(Files.exists(oldest));
+            assertEquals(List.of(256), read(log, 0, 1));
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * Appends messages 0 up to the count, of 30 bytes each, to a log with the default segment size
+     * and closes it.
+     */
+    private void fill(int count) throws IOException {
+        MessageLog log = new MessageLog(directory, logSink);
+        for (int i = 0; i < count; i++) {
+            log.append(frame(i, 30));
+        }
+        log.close();
+    }
+
+    /**
+     * @return The numbers of the messages read.
+     */
+    private static List<Integer> read(MessageLog log, long from, int max) throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        int count = log.read(from, max, frame -> {
+            int number = frame.getInt(frame.position());
+            for (int i = 4; i < frame.remaining(); i++) {
+                assertEquals((byte) number, frame.get(frame.position() + i), "content of message " + number);
+            }
+            numbers.add(number);
+        });
+        assertEquals(numbers.size(), count);
+        return numbers;
+    }
+
+    private static List<Integer> expected(int from, int count) {
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            numbers.add(i);
+        }
+        return numbers;
+    }
+
+    /**
+     * @return A frame of the given length starting with its number and filled with it.
+     */
+    private static ByteBuffer frame(int number, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        frame.putInt(number);
+        while (frame.hasRemaining()) {
+            frame.put((byte) number);
+        }
+        return frame.flip();
+    }
+
+    private List<Path> logFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+    private Path lastLogFile() throws IOException {
+        List<Path> files = logFiles();
+        return files.get(files.size() - 1);
+    }
+}
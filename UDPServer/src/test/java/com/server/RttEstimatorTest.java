@@ -0,0 +1,67 @@
+package com.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the RFC 6298 estimate and its bounds.
+ */
+class RttEstimatorTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void startsAtTheInitialTimeout() {
+        RttEstimator rtt = new RttEstimator();
+        assertEquals(200 * MS, rtt.getRto());
+        assertEquals(0, rtt.getSrtt());
+    }
+
+    @Test
+    void takesTheFirstSampleAsIs() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(40 * MS);
+        assertEquals(40 * MS, rtt.getSrtt());
+        assertEquals(40 * MS + 4 * 20 * MS, rtt.getRto()); // RTTVAR starts at half the sample.
+    }
+
+    @Test
+    void smoothsLaterSamples() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(40 * MS);
+        rtt.sample(80 * MS);
+        long rttvar = (3 * 20 * MS + 40 * MS) / 4;
+        long srtt = (7 * 40 * MS + 80 * MS) / 8;
+        assertEquals(srtt, rtt.getSrtt());
+        assertEquals(srtt + 4 * rttvar, rtt.getRto());
+    }
+
+    @Test
+    void keepsTheTimeoutWithinItsBounds() {
+        RttEstimator rtt = new RttEstimator();
+        for (int i = 0; i < 20; i++) {
+            rtt.sample(10_000); // 10 microseconds, as on loopback.
+        }
+        assertEquals(5 * MS, rtt.getRto());
+
+        for (int i = 0; i < 20; i++) {
+            rtt.backoff();
+        }
+        assertEquals(TimeUnit.SECONDS.toNanos(5), rtt.getRto());
+    }
+
+    @Test
+    void backsOffUntilTheNextSample() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(40 * MS);
+        long rto = rtt.getRto();
+        rtt.backoff();
+        rtt.backoff();
+        assertEquals(4 * rto, rtt.getRto());
+
+        rtt.sample(40 * MS);
+        assertEquals(40 * MS + 4 * ((3 * 20 * MS) / 4), rtt.getRto());
+    }
+}